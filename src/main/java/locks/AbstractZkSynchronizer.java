@@ -4,6 +4,7 @@ import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -15,18 +16,108 @@ import java.util.concurrent.TimeUnit;
  */
 public abstract class AbstractZkSynchronizer {
     private final ZooKeeper zk;
-    private final String resourceName;
+    /**
+     * 会话是否由本对象创建；共享的会话在释放锁时不关闭，锁对象可以重复使用
+     */
+    private final boolean ownsSession;
+    /**
+     * 锁资源节点的全路径
+     */
+    private final String lockPath;
     private boolean hasLock = false;
     private int reenTranLockCount = 0;
     protected String ownerLockName = null;
+    private volatile List<String> cachedChildrenList = Collections.emptyList();
+    /**
+     * 租约时长，0表示不启用租约
+     */
+    private long leaseNanos = 0;
+    private volatile long leaseRenewedAt;
+    private long fencingToken = -1;
+    /**
+     * 是否在写锁占有锁时推进写纪元
+     */
+    private boolean writeEpochTracking = false;
+    /**
+     * 等待者对持有者节点的观察：节点名称 -> {节点版本, 第一次观察到该版本的时间}
+     */
+    private final Map<String, long[]> leaseObservations = new HashMap<String, long[]>();
+    /**
+     * 死锁检测的间隔，0表示不启用死锁检测
+     */
+    private long deadlockCheckNanos = 0;
+    /**
+     * 本客户端节点的持有者标识（进程名#线程ID），启用死锁检测时追加在节点内容的标记之后
+     */
+    private String nodeOwner = null;
     private final static String LOCK_PREFIX = "/lock_";
-    protected static String READ_LOCK_PREFIX = "r_";
-    protected static String WRITE_LOCK_PREFIX = "w_";
+    /**
+     * 写纪元节点的根路径，启用写纪元的锁资源在其下有一个持久节点，写锁占有锁时修改它，它的mzxid就是写纪元
+     */
+    private final static String EPOCH_ROOT = "/zklock_epoch";
+    /**
+     * 条件变量节点的根路径，每个条件变量的等待者是其下的临时顺序节点
+     */
+    private final static String CONDITION_ROOT = "/zklock_condition";
+    /**
+     * 等待图的根路径，启用死锁检测的等待者在其下创建以持有者标识命名的临时节点，
+     * 内容第一行是自身节点，其余各行是它正在等待的节点
+     */
+    private final static String WAITS_ROOT = "/zklock_waits";
+    private final static char OWNER_SEPARATOR = '|';
+    /**
+     * 沿等待图检查时最多访问的持有者个数
+     */
+    private final static int MAX_DEADLOCK_SEARCH = 256;
+    /**
+     * 写锁占有锁后写入自身节点的内容，被高优先级节点越过的持有者依靠它被识别出来
+     */
+    protected final static String HELD_NODE_DATA = "held";
+    /**
+     * 写优先模式下，写锁在队头等待超过插队窗口后写入自身节点的内容，新的读锁看到它后不再插队
+     */
+    protected final static String BARRIER_NODE_DATA = "barrier";
+    /**
+     * 老化窗口：优先级每高一级，节点在排序时相当于提前了这么多个序号，所以一个节点最多被其后
+     * MAX_PRIORITY * PRIORITY_AGING_WINDOW 个序号内的节点越过，不会饿死
+     */
+    private final static long PRIORITY_AGING_WINDOW = 100;
+
+    /**
+     * @param zk
+     * @param ownsSession
+     * @param lockPath    锁资源节点的全路径，父路径不存在时在加锁时创建
+     */
+    AbstractZkSynchronizer(ZooKeeper zk, boolean ownsSession, String lockPath) {
+        this.zk = zk;
+        this.ownsSession = ownsSession;
+        this.lockPath = lockPath;
+    }
 
-    AbstractZkSynchronizer(String zkHost, int sessionTimeout, String resourceName) throws IOException, InterruptedException {
-        this.resourceName = resourceName;
+
+    /**
+     * 按资源名称加锁时锁资源节点的路径
+     *
+     * @param resourceName
+     * @return
+     */
+    static String resourceLockPath(String resourceName) {
+        return LOCK_PREFIX + resourceName;
+    }
+
+
+    /**
+     * 建立zookeeper连接，阻塞到连接成功为止
+     *
+     * @param zkHost
+     * @param sessionTimeout
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static ZooKeeper connect(String zkHost, int sessionTimeout) throws IOException, InterruptedException {
         final CountDownLatch connectedSignal = new CountDownLatch(1);
-        zk = new ZooKeeper(zkHost, sessionTimeout, new Watcher() {
+        ZooKeeper zk = new ZooKeeper(zkHost, sessionTimeout, new Watcher() {
             @Override
             public void process(WatchedEvent we) {
                 if (we.getState() == Event.KeeperState.SyncConnected) {
@@ -35,6 +126,7 @@ public abstract class AbstractZkSynchronizer {
             }
         });
         connectedSignal.await();
+        return zk;
     }
 
 
@@ -53,7 +145,7 @@ public abstract class AbstractZkSynchronizer {
         }
 
         for (int lockIndex = ownerLockIndex; lockIndex >= 0; lockIndex--) {
-            if (locks.get(lockIndex).contains(WRITE_LOCK_PREFIX)) {
+            if (LockNodeName.isWriter(locks.get(lockIndex))) {
                 return lockIndex;
             }
         }
@@ -61,6 +153,88 @@ public abstract class AbstractZkSynchronizer {
     }
 
 
+    /**
+     * 读锁需要监控的节点：前面最近的写节点；没有的话则是被本客户端越过但仍然持有锁的写节点
+     *
+     * @param locks lock_path下的子节点列表
+     * @return 不需要监控时返回null
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected String readerWatchNode(List<String> locks) throws KeeperException, InterruptedException {
+        int previousWatchNodeIndex = readerPreviousWatchNodeIndex(locks);
+        if (previousWatchNodeIndex != -1) {
+            return locks.get(previousWatchNodeIndex);
+        }
+        return overtakenWriterHolder(locks);
+    }
+
+
+    /**
+     * 高优先级节点会排到比它先入队的节点前面，可能越过一个已经持有写锁的节点，此方法返回这个持有者。
+     * 没有发生越过时不会访问zookeeper
+     *
+     * @param locks lock_path下的子节点列表
+     * @return 没有被越过的持有者时返回null
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected String overtakenWriterHolder(List<String> locks) throws KeeperException, InterruptedException {
+        long ownerSequence = LockNodeName.sequenceOf(ownerLockName);
+        for (int lockIndex = locks.indexOf(ownerLockName) + 1; lockIndex < locks.size(); lockIndex++) {
+            String lock = locks.get(lockIndex);
+            if (LockNodeName.sequenceOf(lock) < ownerSequence && LockNodeName.isWriter(lock) && nodeDataStartsWith(lock, HELD_NODE_DATA)) {
+                return lock;
+            }
+        }
+        return null;
+    }
+
+
+    private boolean nodeDataStartsWith(String nodeName, String prefix) throws KeeperException, InterruptedException {
+        try {
+            return new String(zk.getData(nodePath(nodeName), false, null)).startsWith(prefix);
+        } catch (KeeperException.NoNodeException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * 判断本客户端前面第一个写节点是否竖起了写优先屏障
+     *
+     * @param locks lock_path下的子节点列表
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected boolean writerBarrierAhead(List<String> locks) throws KeeperException, InterruptedException {
+        int ownerLockIndex = locks.indexOf(ownerLockName);
+        for (int lockIndex = 0; lockIndex < ownerLockIndex; lockIndex++) {
+            if (LockNodeName.isWriter(locks.get(lockIndex))) {
+                return nodeDataStartsWith(locks.get(lockIndex), BARRIER_NODE_DATA);
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * 写锁竖起写优先屏障
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected void raiseWriterBarrier() throws KeeperException, InterruptedException {
+        zk.setData(nodePath(ownerLockName), nodeData(BARRIER_NODE_DATA), -1);
+    }
+
+
+    private static long rankOf(String nodeName) {
+        return LockNodeName.sequenceOf(nodeName) - LockNodeName.priorityOf(nodeName) * PRIORITY_AGING_WINDOW;
+    }
+
+
     /**
      * 写锁需要监控本客户端前面最近的一个写节点，此方法是返回这个节点的位置
      *
@@ -105,12 +279,31 @@ public abstract class AbstractZkSynchronizer {
 
 
     /**
-     * 锁资源名称
+     * 客户端会话ID，紧凑格式的节点名称用它标识持有者
+     *
+     * @return
+     */
+    protected long getSessionId() {
+        return zk.getSessionId();
+    }
+
+
+    /**
+     * 锁资源节点路径
      *
      * @return
      */
     private String lockPath() {
-        return LOCK_PREFIX + resourceName;
+        return lockPath;
+    }
+
+    /**
+     * 写纪元节点路径，与锁资源节点一起在空闲时删除
+     *
+     * @return
+     */
+    private String epochPath() {
+        return EPOCH_ROOT + lockPath();
     }
 
     /**
@@ -142,12 +335,191 @@ public abstract class AbstractZkSynchronizer {
     }
 
 
+    /**
+     * 逐级创建持久节点，已经存在的节点忽略
+     *
+     * @param zk
+     * @param path
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    static void createPersistentPath(ZooKeeper zk, String path) throws KeeperException, InterruptedException {
+        for (int index = path.indexOf('/', 1); ; index = path.indexOf('/', index + 1)) {
+            String subPath = index == -1 ? path : path.substring(0, index);
+            try {
+                zk.create(subPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException ignored) {
+
+            }
+            if (index == -1) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * 启用写纪元，必须在加锁之前调用，同一资源的所有客户端都要启用。写锁占有锁时在同一个事务中推进写纪元，
+     * 所以不增加请求次数，持有者崩溃或者租约被收回时纪元也已经推进
+     *
+     * @param writeEpochTracking
+     */
+    protected void setWriteEpochTracking(boolean writeEpochTracking) {
+        this.writeEpochTracking = writeEpochTracking;
+    }
+
+
+    protected boolean writeEpochTracked() {
+        return writeEpochTracking;
+    }
+
+
+    /**
+     * 当前的写纪元，每次有写锁占有锁后都会改变，调用方需要持有读锁或者写锁。
+     * 写纪元节点不存在时说明锁资源节点这次创建以来还没有写锁，用锁资源节点czxid的相反数表示，
+     * 锁资源节点删除后重新创建时它也会改变
+     *
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected long getWriteEpoch() throws KeeperException, InterruptedException {
+        if (!writeEpochTracking) {
+            throw new IllegalStateException("write epoch tracking is not enabled");
+        }
+        Stat epochStat = zk.exists(epochPath(), false);
+        if (epochStat != null) {
+            return epochStat.getMzxid();
+        }
+        Stat lockPathStat = zk.exists(lockPath(), false);
+        return lockPathStat == null ? 0 : -lockPathStat.getCzxid();
+    }
+
+
+    private String conditionPath(String conditionName) {
+        return CONDITION_ROOT + lockPath() + "/" + conditionName;
+    }
+
+
+    /**
+     * 在条件变量下创建代表本客户端的等待节点，必须在释放锁之前创建，这样释放锁之后的signal不会丢失
+     *
+     * @param conditionName
+     * @return 等待节点的全路径
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected String addConditionWaiter(String conditionName) throws KeeperException, InterruptedException {
+        while (true) {
+            try {
+                return zk.create(conditionPath(conditionName) + "/waiter_", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+            } catch (KeeperException.NoNodeException e) {
+                createPersistentPath(zk, conditionPath(conditionName));
+            }
+        }
+    }
+
+
+    /**
+     * 等待条件变量的等待节点被signal删除
+     *
+     * @param waiterPath
+     * @param nanosTimeout 小于0时一直等待
+     * @return 被signal时返回true，超时返回false
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected boolean awaitConditionWaiter(String waiterPath, long nanosTimeout) throws KeeperException, InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(1);
+        Stat waiterStat = zk.exists(waiterPath, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getType() == Event.EventType.NodeDeleted) {
+                    signal.countDown();
+                }
+            }
+        });
+        if (waiterStat == null) {
+            return true;
+        }
+        boolean signalled = false;
+        try {
+            if (nanosTimeout < 0) {
+                signal.await();
+                signalled = true;
+            } else {
+                signalled = signal.await(nanosTimeout, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            if (!signalled) {
+                try {
+                    zk.delete(waiterPath, -1);
+                } catch (KeeperException.NoNodeException e) {
+                    // 超时的同时被signal
+                    signalled = true;
+                }
+            }
+        }
+        return signalled;
+    }
+
+
+    /**
+     * 唤醒条件变量上等待最久的一个或者全部等待者
+     *
+     * @param conditionName
+     * @param all
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected void signalCondition(String conditionName, boolean all) throws KeeperException, InterruptedException {
+        List<String> waiters;
+        try {
+            waiters = zk.getChildren(conditionPath(conditionName), false);
+        } catch (KeeperException.NoNodeException e) {
+            return;
+        }
+        Collections.sort(waiters, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return Long.valueOf(LockNodeName.sequenceOf(o1)).compareTo(LockNodeName.sequenceOf(o2));
+            }
+        });
+        for (String waiter : waiters) {
+            try {
+                zk.delete(conditionPath(conditionName) + "/" + waiter, -1);
+                if (!all) {
+                    return;
+                }
+            } catch (KeeperException.NoNodeException ignored) {
+                // 等待者已经超时离开
+            }
+        }
+    }
+
+
+    /**
+     * 本客户端是否以读锁的方式持有锁
+     *
+     * @return
+     */
+    protected boolean isOwnerReadLock() {
+        return isOwnerLock() && LockNodeName.isReader(ownerLockName);
+    }
+
+
     /**
      * 创建锁资源节点
      */
     protected void createNodeResource() {
         try {
-            zk.create(lockPath(), "0".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            try {
+                zk.create(lockPath(), "0".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            } catch (KeeperException.NoNodeException e) {
+                // 锁资源节点在多级命名空间下，先创建父路径
+                createPersistentPath(zk, lockPath().substring(0, lockPath().lastIndexOf('/')));
+                zk.create(lockPath(), "0".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
         } catch (KeeperException ignored) {
 
         } catch (InterruptedException e) {
@@ -170,7 +542,7 @@ public abstract class AbstractZkSynchronizer {
         }
 
         for (int lockIndex = ownerLockIndex; lockIndex > 0; lockIndex--) {
-            if (locks.get(lockIndex).contains(WRITE_LOCK_PREFIX)) {
+            if (LockNodeName.isWriter(locks.get(lockIndex))) {
                 return true;
             }
         }
@@ -185,19 +557,85 @@ public abstract class AbstractZkSynchronizer {
      * @throws InterruptedException
      */
     protected int getReadLockCount() throws KeeperException, InterruptedException {
-        byte[] lockPathContent = zk.getData(lockPath(), false, null);
+        return getReadLockCount(null);
+    }
+
+    /**
+     * 在锁资源节点中获取读锁占用个数，同时把锁资源节点的stat填入lockPathStat
+     *
+     * @param lockPathStat
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected int getReadLockCount(Stat lockPathStat) throws KeeperException, InterruptedException {
+        byte[] lockPathContent = zk.getData(lockPath(), false, lockPathStat);
         return Integer.valueOf(new String(lockPathContent));
     }
 
     /**
-     * 如果读锁在队头则需要进行原子性加1操作，而这个操作逻辑上是一定成功的，如果有异常就是zookeeper的异常
+     * 只读快照：锁资源节点的read_count和子节点个数，用于在不创建节点的情况下判断非阻塞加锁是否一定失败
+     *
+     * @param lockPathStat 填入锁资源节点的stat，其中numChildren为队列长度
+     * @return read_count；锁资源节点不存在时返回-1，此时锁一定空闲
      * @throws KeeperException
      * @throws InterruptedException
      */
-    protected void startupAddReadLockCount() throws KeeperException, InterruptedException {
-        Stat lockPathStat = zk.exists(lockPath(), false);
-        int readLockCount = getReadLockCount();
-        zk.setData(lockPath(), String.valueOf(readLockCount + 1).getBytes(), lockPathStat.getVersion());
+    protected int readLockPathSnapshot(Stat lockPathStat) throws KeeperException, InterruptedException {
+        try {
+            return getReadLockCount(lockPathStat);
+        } catch (KeeperException.NoNodeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 如果读锁在队头则需要进行原子性加1操作；写锁占有锁时会修改锁资源节点的版本，这时加1失败返回false，由调用方重新判断
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected boolean startupAddReadLockCount() throws KeeperException, InterruptedException {
+        Stat lockPathStat = new Stat();
+        int readLockCount = getReadLockCount(lockPathStat);
+        try {
+            zk.setData(lockPath(), String.valueOf(readLockCount + 1).getBytes(), lockPathStat.getVersion());
+            return true;
+        } catch (KeeperException.BadVersionException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * 写锁占有锁：在读取read_count时的版本上原子性地修改锁资源节点的版本并标记自身节点为持有者，
+     * 期间有读锁加1或者其他写锁占有锁都会导致版本不一致而返回false
+     *
+     * @param lockPathStat 读取read_count时得到的锁资源节点stat
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected boolean grantWriteLock(Stat lockPathStat) throws KeeperException, InterruptedException {
+        List<Op> ops = new ArrayList<Op>();
+        ops.add(Op.setData(lockPath(), "0".getBytes(), lockPathStat.getVersion()));
+        ops.add(Op.setData(nodePath(ownerLockName), nodeData(HELD_NODE_DATA), -1));
+        if (writeEpochTracking) {
+            ops.add(Op.setData(epochPath(), new byte[0], -1));
+        }
+        try {
+            zk.multi(ops);
+            return true;
+        } catch (KeeperException.BadVersionException e) {
+            return false;
+        } catch (KeeperException.NoNodeException e) {
+            if (!writeEpochTracking) {
+                throw e;
+            }
+            // 写纪元节点在锁资源节点空闲时被删除了，创建后由调用方重试；自身节点不存在时由调用方的下一轮检查处理
+            createPersistentPath(zk, epochPath());
+            return false;
+        }
     }
 
 
@@ -251,13 +689,14 @@ public abstract class AbstractZkSynchronizer {
      * @throws InterruptedException
      */
     protected String addChildren(String childrenName) throws KeeperException, InterruptedException {
-        String nodePath = zk.create(nodePath(childrenName), childrenName.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-        return nodePath.split("/")[2];
+        nodeOwner = deadlockDetectionEnabled() ? currentOwner() : null;
+        String nodePath = zk.create(nodePath(childrenName), nodeData(childrenName), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        return nodePath.substring(nodePath.lastIndexOf('/') + 1);
     }
 
 
     /**
-     * 获取锁资源路径下的子节点列表，并由小到大排序
+     * 获取锁资源路径下的子节点列表，按优先级老化后的序号由小到大排序
      * @return
      * @throws KeeperException
      * @throws InterruptedException
@@ -267,37 +706,127 @@ public abstract class AbstractZkSynchronizer {
         Collections.sort(childrenList, new Comparator<String>() {
             @Override
             public int compare(String o1, String o2) {
-                return Integer.valueOf(o1.split("_")[2]) > Integer.valueOf(o2.split("_")[2]) ? 1 : -1;
+                long rank1 = rankOf(o1);
+                long rank2 = rankOf(o2);
+                if (rank1 != rank2) {
+                    return rank1 > rank2 ? 1 : -1;
+                }
+                return LockNodeName.sequenceOf(o1) > LockNodeName.sequenceOf(o2) ? 1 : -1;
             }
         });
-
+        cachedChildrenList = childrenList;
         return childrenList;
     }
 
 
     /**
-     * 尝试删除锁资源节点，可能会删除失败的
+     * 通过锁资源节点的stat获取队列长度，只需要一次exists请求，不会拉取子节点列表
+     *
+     * @return 锁资源节点不存在时返回0
+     * @throws KeeperException
+     * @throws InterruptedException
      */
-    private void tryRemoveLockResource() {
-
-        try {
-            zk.delete(lockPath(), -1);
-        } catch (Exception ignored) {
-
-        }
+    protected int getQueueLength() throws KeeperException, InterruptedException {
+        Stat lockPathStat = zk.exists(lockPath(), false);
+        return lockPathStat == null ? 0 : lockPathStat.getNumChildren();
     }
 
 
     /**
-     * 关闭客户端连接并删除客户端代表的子节点
+     * 拉取最新的子节点列表并计算队列状态
+     *
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected LockQueueState getQueueState() throws KeeperException, InterruptedException {
+        if (!existsLockPath()) {
+            return queueState(Collections.<String>emptyList());
+        }
+        try {
+            return queueState(getChildrenList());
+        } catch (KeeperException.NoNodeException e) {
+            return queueState(Collections.<String>emptyList());
+        }
+    }
+
+
+    /**
+     * 根据本客户端最近一次拉取到的子节点列表计算队列状态，不访问zookeeper，结果可能已经过期
+     *
+     * @return
+     */
+    protected LockQueueState getCachedQueueState() {
+        return queueState(cachedChildrenList);
+    }
+
+
+    private LockQueueState queueState(List<String> locks) {
+        int position = ownerLockName == null ? -1 : locks.indexOf(ownerLockName);
+        int end = position == -1 ? locks.size() : position;
+        int writersAhead = 0;
+        for (int lockIndex = 0; lockIndex < end; lockIndex++) {
+            if (LockNodeName.isWriter(locks.get(lockIndex))) {
+                writersAhead++;
+            }
+        }
+        return new LockQueueState(locks.size(), position, end - writersAhead, writersAhead);
+    }
+
+
+    /**
+     * 尝试删除锁资源节点，可能会删除失败的
+     */
+    private void tryRemoveLockResource() {
+        if (writeEpochTracking) {
+            // 写锁创建写纪元节点时自身节点还在锁资源节点下，所以两者能一起删除时不会有正在推进的纪元
+            try {
+                zk.multi(Arrays.asList(Op.delete(lockPath(), -1), Op.delete(epochPath(), -1)));
+                return;
+            } catch (Exception ignored) {
+
+            }
+        }
+        try {
+            zk.delete(lockPath(), -1);
+        } catch (Exception ignored) {
+
+        }
+    }
+
+
+    /**
+     * 删除客户端代表的子节点并尝试删除锁资源节点，会话由本对象创建时关闭客户端连接。
+     * 本客户端没有入队时不发起任何删除请求
      * @throws KeeperException
      * @throws InterruptedException
      */
     protected void close() throws KeeperException, InterruptedException {
+        releaseNode();
+        if (ownsSession) {
+            zk.close();
+        }
+    }
+
+
+    /**
+     * 删除客户端代表的子节点并尝试删除锁资源节点，保留会话
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected void releaseNode() throws KeeperException, InterruptedException {
         reenTranLockCount = 0;
-        zk.delete(nodePath(ownerLockName), -1);
-        tryRemoveLockResource();
-        zk.close();
+        leaseObservations.clear();
+        if (ownerLockName != null) {
+            try {
+                zk.delete(nodePath(ownerLockName), -1);
+            } catch (KeeperException.NoNodeException ignored) {
+                // 租约过期后已经被其他客户端删除
+            }
+            ownerLockName = null;
+            tryRemoveLockResource();
+        }
     }
 
 
@@ -307,7 +836,7 @@ public abstract class AbstractZkSynchronizer {
      * @param time
      * @param unit
      */
-    protected void watchPreviousNode(String previousNodeName, long time, TimeUnit unit) {
+    protected void watchPreviousNode(String previousNodeName, long time, TimeUnit unit) throws ZkDeadlockException {
         try {
             final CountDownLatch nodeDeleteSignal = new CountDownLatch(1);
             zk.getData(nodePath(previousNodeName), new Watcher() {
@@ -318,7 +847,17 @@ public abstract class AbstractZkSynchronizer {
                     }
                 }
             }, null);
-            nodeDeleteSignal.await(time, unit);
+            List<String> awaited = Collections.singletonList(nodePath(previousNodeName));
+            if (leaseEnabled()) {
+                evictIfLeaseExpired(previousNodeName);
+                if (!awaitSignal(nodeDeleteSignal, Math.min(unit.toNanos(time), leaseNanos), awaited)) {
+                    evictIfLeaseExpired(previousNodeName);
+                }
+                return;
+            }
+            awaitSignal(nodeDeleteSignal, unit.toNanos(time), awaited);
+        } catch (ZkDeadlockException e) {
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -346,7 +885,15 @@ public abstract class AbstractZkSynchronizer {
         }, null);
         Integer readCount = Integer.valueOf(new String(readCountData));
         if (readCount > 0) {
-            readCountDataChangeSignal.await(time, unit);
+            List<String> awaited = readersHolding();
+            if (leaseEnabled()) {
+                evictExpiredReaders();
+                if (!awaitSignal(readCountDataChangeSignal, Math.min(unit.toNanos(time), leaseNanos), awaited)) {
+                    evictExpiredReaders();
+                }
+                return;
+            }
+            awaitSignal(readCountDataChangeSignal, unit.toNanos(time), awaited);
         }
     }
 
@@ -368,7 +915,15 @@ public abstract class AbstractZkSynchronizer {
         }, null);
         Integer readCount = Integer.valueOf(new String(readCountData));
         if (readCount > 0) {
-            readCountDataChangeSignal.await();
+            List<String> awaited = readersHolding();
+            if (leaseEnabled()) {
+                evictExpiredReaders();
+                if (!awaitSignal(readCountDataChangeSignal, leaseNanos, awaited)) {
+                    evictExpiredReaders();
+                }
+                return;
+            }
+            awaitSignal(readCountDataChangeSignal, -1, awaited);
         }
     }
 
@@ -376,10 +931,10 @@ public abstract class AbstractZkSynchronizer {
      * 阻塞式监控锁资源节点的read_count的时间变化事件
      * @param previousNodeName
      */
-    protected void watchPreviousNode(String previousNodeName) {
+    protected void watchPreviousNode(String previousNodeName) throws ZkDeadlockException {
         try {
             final CountDownLatch nodeDeleteSignal = new CountDownLatch(1);
-            if (previousNodeName.contains(READ_LOCK_PREFIX) && ownerLockName.contains(READ_LOCK_PREFIX)) {
+            if (LockNodeName.isReader(previousNodeName) && LockNodeName.isReader(ownerLockName)) {
                 return;
             }
             zk.getData(nodePath(previousNodeName), new Watcher() {
@@ -390,13 +945,290 @@ public abstract class AbstractZkSynchronizer {
                     }
                 }
             }, null);
-            nodeDeleteSignal.await();
+            List<String> awaited = Collections.singletonList(nodePath(previousNodeName));
+            if (leaseEnabled()) {
+                evictIfLeaseExpired(previousNodeName);
+                while (!awaitSignal(nodeDeleteSignal, leaseNanos, awaited)) {
+                    if (evictIfLeaseExpired(previousNodeName)) {
+                        return;
+                    }
+                }
+                return;
+            }
+            awaitSignal(nodeDeleteSignal, -1, awaited);
+        } catch (ZkDeadlockException e) {
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
 
+    /**
+     * 启用死锁检测，必须在加锁之前调用。等待者把自己的等待关系发布到等待图中，并每隔一个检测间隔沿等待图检查一次，
+     * 发现循环等待时环上最晚入队的等待者抛出ZkDeadlockException，所以死锁最多持续约一个检测间隔
+     *
+     * @param checkInterval 检测间隔，小于等于0时关闭死锁检测
+     * @param unit
+     */
+    protected void setDeadlockDetection(long checkInterval, TimeUnit unit) {
+        deadlockCheckNanos = checkInterval <= 0 ? 0 : unit.toNanos(checkInterval);
+    }
+
+
+    protected boolean deadlockDetectionEnabled() {
+        return deadlockCheckNanos > 0;
+    }
+
+
+    /**
+     * 当前线程的持有者标识，同一线程在所有锁上的节点使用相同的标识，等待图才能把它们连起来
+     *
+     * @return
+     */
+    private static String currentOwner() {
+        return ManagementFactory.getRuntimeMXBean().getName() + "#" + Thread.currentThread().getId();
+    }
+
+
+    /**
+     * 写入自身节点的内容：标记，启用死锁检测时后面再加上持有者标识
+     *
+     * @param marker
+     * @return
+     */
+    private byte[] nodeData(String marker) {
+        return (nodeOwner == null ? marker : marker + OWNER_SEPARATOR + nodeOwner).getBytes();
+    }
+
+
+    private static String ownerOfNodeData(byte[] nodeData) {
+        String data = new String(nodeData);
+        int separatorIndex = data.lastIndexOf(OWNER_SEPARATOR);
+        return separatorIndex == -1 ? null : data.substring(separatorIndex + 1);
+    }
+
+
+    /**
+     * 队头写节点等待read_count归零时可能在等待的读节点：除自身以外队列中所有的读节点。非公平模式和优先级下
+     * 占用read_count的读节点可以排在队头写节点的后面，所以不能只取排在自身前面的节点。
+     * 末尾附上锁资源节点路径，标记这些是等待read_count的边，查找时跳过还在排队、没有占用read_count的读节点
+     *
+     * @return 节点全路径，没有读节点时为空
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private List<String> readersHolding() throws KeeperException, InterruptedException {
+        List<String> readers = new ArrayList<String>();
+        if (!deadlockDetectionEnabled()) {
+            return readers;
+        }
+        for (String lock : getChildrenList()) {
+            if (LockNodeName.isReader(lock) && !lock.equals(ownerLockName)) {
+                readers.add(nodePath(lock));
+            }
+        }
+        if (!readers.isEmpty()) {
+            // 锁资源节点的内容是read_count，没有持有者标识，查找时不会沿它继续
+            readers.add(lockPath());
+        }
+        return readers;
+    }
+
+
+    /**
+     * 等待关系是否是等待读节点占用的read_count：等待者同时列出了读节点所在的锁资源节点
+     */
+    private static boolean isReadCountWait(String node, List<String> awaited) {
+        int separatorIndex = node.lastIndexOf('/');
+        return LockNodeName.isReader(node.substring(separatorIndex + 1)) && awaited.contains(node.substring(0, separatorIndex));
+    }
+
+
+    /**
+     * 等待信号，启用死锁检测时在等待期间发布等待关系，并每隔一个检测间隔检查一次循环等待
+     *
+     * @param signal
+     * @param nanosTimeout 小于0时一直等待
+     * @param awaited      正在等待的节点全路径
+     * @return 是否收到信号
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private boolean awaitSignal(CountDownLatch signal, long nanosTimeout, List<String> awaited) throws KeeperException, InterruptedException {
+        if (!deadlockDetectionEnabled() || nodeOwner == null || awaited.isEmpty()) {
+            if (nanosTimeout < 0) {
+                signal.await();
+                return true;
+            }
+            return signal.await(nanosTimeout, TimeUnit.NANOSECONDS);
+        }
+        final long deadline = System.nanoTime() + nanosTimeout;
+        String waitPath = WAITS_ROOT + "/" + nodeOwner;
+        publishWaits(waitPath, awaited);
+        List<String> cycle;
+        try {
+            while (true) {
+                long remaining = nanosTimeout < 0 ? deadlockCheckNanos : deadline - System.nanoTime();
+                if (signal.await(Math.min(remaining, deadlockCheckNanos), TimeUnit.NANOSECONDS)) {
+                    return true;
+                }
+                if (nanosTimeout >= 0 && deadline - System.nanoTime() <= 0L) {
+                    return false;
+                }
+                cycle = findWaitCycle(awaited);
+                if (cycle != null && signal.getCount() > 0) {
+                    break;
+                }
+            }
+        } finally {
+            try {
+                zk.delete(waitPath, -1);
+            } catch (KeeperException.NoNodeException ignored) {
+
+            }
+        }
+        // 放弃加锁：删除自身节点但保留会话，释放其他锁之后可以用同一个锁对象重试
+        releaseNode();
+        throw new ZkDeadlockException(cycle);
+    }
+
+
+    private void publishWaits(String waitPath, List<String> awaited) throws KeeperException, InterruptedException {
+        StringBuilder waits = new StringBuilder(nodePath(ownerLockName));
+        for (String node : awaited) {
+            waits.append('\n').append(node);
+        }
+        while (true) {
+            try {
+                zk.create(waitPath, waits.toString().getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+                return;
+            } catch (KeeperException.NoNodeException e) {
+                createPersistentPath(zk, WAITS_ROOT);
+            } catch (KeeperException.NodeExistsException e) {
+                // 同一线程上一次等待遗留的节点
+                zk.delete(waitPath, -1);
+            }
+        }
+    }
+
+
+    /**
+     * 从本客户端等待的节点出发沿等待图深度优先查找回到本线程的环
+     *
+     * @param awaited
+     * @return 本客户端是环上最晚入队的等待者时返回环上的持有者标识，否则返回null
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private List<String> findWaitCycle(List<String> awaited) throws KeeperException, InterruptedException {
+        LinkedList<String> owners = new LinkedList<String>();
+        LinkedList<String> waitingNodes = new LinkedList<String>();
+        owners.add(nodeOwner);
+        waitingNodes.add(nodePath(ownerLockName));
+        if (!searchWaitCycle(awaited, owners, waitingNodes, new HashSet<String>())) {
+            return null;
+        }
+        long ownCzxid = czxidOf(nodePath(ownerLockName));
+        for (String waitingNode : waitingNodes) {
+            if (czxidOf(waitingNode) > ownCzxid) {
+                return null;
+            }
+        }
+        return owners;
+    }
+
+
+    private boolean searchWaitCycle(List<String> awaited, LinkedList<String> owners, LinkedList<String> waitingNodes,
+                                    Set<String> visited) throws KeeperException, InterruptedException {
+        for (String node : awaited) {
+            String owner;
+            try {
+                owner = ownerOfNodeData(zk.getData(node, false, null));
+            } catch (KeeperException.NoNodeException e) {
+                continue;
+            }
+            if (owner == null) {
+                continue;
+            }
+            boolean readCountWait = isReadCountWait(node, awaited);
+            if (owner.equals(nodeOwner)) {
+                if (readCountWait && node.equals(nodePath(ownerLockName))) {
+                    // 本线程正在用这个读节点排队，它还没有占用read_count
+                    continue;
+                }
+                return true;
+            }
+            if (visited.size() >= MAX_DEADLOCK_SEARCH || visited.contains(owner)) {
+                continue;
+            }
+            String[] waits;
+            try {
+                waits = new String(zk.getData(WAITS_ROOT + "/" + owner, false, null)).split("\n");
+            } catch (KeeperException.NoNodeException e) {
+                // 持有者没有在等待
+                continue;
+            }
+            if (readCountWait && waits[0].equals(node)) {
+                // 读节点还在排队，没有占用read_count
+                continue;
+            }
+            visited.add(owner);
+            owners.addLast(owner);
+            waitingNodes.addLast(waits[0]);
+            if (searchWaitCycle(Arrays.asList(waits).subList(1, waits.length), owners, waitingNodes, visited)) {
+                return true;
+            }
+            owners.removeLast();
+            waitingNodes.removeLast();
+        }
+        return false;
+    }
+
+
+    /**
+     * 节点的创建事务ID，节点已经不存在时返回-1
+     */
+    private long czxidOf(String path) throws KeeperException, InterruptedException {
+        Stat stat = zk.exists(path, false);
+        return stat == null ? -1 : stat.getCzxid();
+    }
+
+
+    /**
+     * 跟踪本客户端节点的前驱直到成为队头，只读取zookeeper，可以在后台线程中与加锁线程并发执行
+     *
+     * @return 成为队头时返回true，本客户端节点已经不存在时返回false
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected boolean awaitHead() throws KeeperException, InterruptedException {
+        String ownNodeName = ownerLockName;
+        while (true) {
+            List<String> locks = getChildrenList();
+            int ownIndex = locks.indexOf(ownNodeName);
+            if (ownIndex == -1) {
+                return false;
+            }
+            if (ownIndex == 0) {
+                return true;
+            }
+            final CountDownLatch nodeDeleteSignal = new CountDownLatch(1);
+            Stat previous = zk.exists(nodePath(locks.get(ownIndex - 1)), new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    if (event.getType() == Event.EventType.NodeDeleted) {
+                        nodeDeleteSignal.countDown();
+                    }
+                }
+            });
+            if (previous != null) {
+                nodeDeleteSignal.await();
+            }
+        }
+    }
+
+
     /**
      * 判断本客户端是否已经获取过锁
      * @return
@@ -406,16 +1238,189 @@ public abstract class AbstractZkSynchronizer {
     }
 
     /**
-     * 占有锁
+     * 占有锁，启用租约时标记自身节点为持有者并记录fencing token
      * @param isOwnerLock
+     * @throws KeeperException
+     * @throws InterruptedException
      */
-    protected void setOwnerLock(boolean isOwnerLock) {
+    protected void setOwnerLock(boolean isOwnerLock) throws KeeperException, InterruptedException {
         hasLock = isOwnerLock;
         if (isOwnerLock) {
             reenTranLockCount = reenTranLockCount + 1;
+            if (leaseEnabled()) {
+                Stat ownerStat = zk.setData(nodePath(ownerLockName), nodeData(HELD_NODE_DATA), -1);
+                // 取占有锁时这次写入的mzxid而不是节点的czxid：高优先级节点可能比先入队的节点先获得锁，czxid不随获得锁的顺序递增
+                fencingToken = ownerStat.getMzxid();
+                leaseRenewedAt = System.nanoTime();
+            }
         } else {
             reenTranLockCount = reenTranLockCount - 1;
         }
     }
 
+
+    /**
+     * 设置租约时长。启用后持有者需要在租约时长内调用renewLease续约，等待者观察到持有者节点在一个租约时长内
+     * 没有续约时会删除它，因此资源上的最长停顿由租约时长决定而不是sessionTimeout。同一资源的所有客户端应使用相同的设置
+     *
+     * @param time 小于等于0时关闭租约
+     * @param unit
+     */
+    protected void setLeaseTime(long time, TimeUnit unit) {
+        leaseNanos = time <= 0 ? 0 : unit.toNanos(time);
+    }
+
+
+    protected boolean leaseEnabled() {
+        return leaseNanos > 0;
+    }
+
+
+    /**
+     * 续约：修改自身节点使其版本变化，等待者据此判断持有者仍在推进
+     *
+     * @return 自身节点已经被删除（锁被收回）时返回false
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected boolean renewLease() throws KeeperException, InterruptedException {
+        if (!isOwnerLock()) {
+            return false;
+        }
+        try {
+            zk.setData(nodePath(ownerLockName), nodeData(HELD_NODE_DATA), -1);
+        } catch (KeeperException.NoNodeException e) {
+            return false;
+        }
+        leaseRenewedAt = System.nanoTime();
+        return true;
+    }
+
+
+    /**
+     * 持有者在本地判断租约是否仍然有效，等待者开始计时总是晚于持有者最近一次续约，所以这个判断是保守的
+     *
+     * @return
+     */
+    protected boolean isLeaseValid() {
+        return isOwnerLock() && (!leaseEnabled() || System.nanoTime() - leaseRenewedAt < leaseNanos);
+    }
+
+
+    /**
+     * fencing token：获得锁时标记持有者节点的那次写入的mzxid。后一个写锁持有者要等前一个释放之后才能获得锁，
+     * 所以同一资源上后获得写锁的持有者的token一定更大
+     *
+     * @return 没有持有锁或者没有启用租约时返回-1
+     */
+    protected long getFencingToken() {
+        return isOwnerLock() ? fencingToken : -1;
+    }
+
+
+    /**
+     * 持有者节点在一个租约时长内版本没有变化时删除它；读节点删除的同时对read_count原子性减1
+     *
+     * @param nodeName
+     * @return 节点已经不存在或者被本次调用删除时返回true
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected boolean evictIfLeaseExpired(String nodeName) throws KeeperException, InterruptedException {
+        Stat nodeStat = new Stat();
+        byte[] nodeData;
+        try {
+            nodeData = zk.getData(nodePath(nodeName), false, nodeStat);
+        } catch (KeeperException.NoNodeException e) {
+            leaseObservations.remove(nodeName);
+            return true;
+        }
+        if (!new String(nodeData).startsWith(HELD_NODE_DATA)) {
+            leaseObservations.remove(nodeName);
+            return false;
+        }
+        long now = System.nanoTime();
+        long[] observation = leaseObservations.get(nodeName);
+        if (observation == null || observation[0] != nodeStat.getVersion()) {
+            leaseObservations.put(nodeName, new long[]{nodeStat.getVersion(), now});
+            return false;
+        }
+        if (now - observation[1] < leaseNanos) {
+            return false;
+        }
+        leaseObservations.remove(nodeName);
+        return evict(nodeName, nodeStat.getVersion());
+    }
+
+
+    private boolean evict(String nodeName, int nodeVersion) throws KeeperException, InterruptedException {
+        if (LockNodeName.isWriter(nodeName)) {
+            try {
+                zk.delete(nodePath(nodeName), nodeVersion);
+                return true;
+            } catch (KeeperException.NoNodeException e) {
+                return true;
+            } catch (KeeperException.BadVersionException e) {
+                return false;
+            }
+        }
+        while (true) {
+            Stat lockPathStat = new Stat();
+            int readLockCount = getReadLockCount(lockPathStat);
+            try {
+                zk.multi(Arrays.asList(
+                        Op.delete(nodePath(nodeName), nodeVersion),
+                        Op.setData(lockPath(), String.valueOf(readLockCount - 1).getBytes(), lockPathStat.getVersion())));
+                return true;
+            } catch (KeeperException.NoNodeException e) {
+                return true;
+            } catch (KeeperException.BadVersionException e) {
+                Stat currentStat = zk.exists(nodePath(nodeName), false);
+                if (currentStat == null || currentStat.getVersion() != nodeVersion) {
+                    return currentStat == null;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 写锁在队头等待读锁释放时，删除租约过期的读锁持有者
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected void evictExpiredReaders() throws KeeperException, InterruptedException {
+        for (String lock : getChildrenList()) {
+            if (LockNodeName.isReader(lock)) {
+                evictIfLeaseExpired(lock);
+            }
+        }
+    }
+
+
+    /**
+     * 启用租约时读锁的释放：删除自身节点和read_count减1在同一个事务中完成，
+     * 节点已经被其他客户端收回时read_count也已经被减过，不再重复减
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    protected void releaseLeasedReadLock() throws KeeperException, InterruptedException {
+        while (true) {
+            Stat lockPathStat = new Stat();
+            int readLockCount = getReadLockCount(lockPathStat);
+            try {
+                zk.multi(Arrays.asList(
+                        Op.delete(nodePath(ownerLockName), -1),
+                        Op.setData(lockPath(), String.valueOf(readLockCount - 1).getBytes(), lockPathStat.getVersion())));
+                return;
+            } catch (KeeperException.NoNodeException e) {
+                return;
+            } catch (KeeperException.BadVersionException ignored) {
+
+            }
+        }
+    }
+
 }
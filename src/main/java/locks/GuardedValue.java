@@ -0,0 +1,109 @@
+package locks;
+
+import java.util.concurrent.Callable;
+
+/**
+ * 受锁资源保护的数据在本地的缓存：持有读锁时，如果锁资源的写纪元和缓存时相同，说明期间没有写锁占有过，
+ * 直接返回缓存的值，否则重新加载。持有写锁时总是重新加载，并且不缓存结果，因为持有写锁期间数据还会变化。
+ * 锁资源的所有客户端都必须启用写纪元
+ *
+ * @author mirror
+ */
+public class GuardedValue<T> {
+
+    /**
+     * 估算缓存值占用的内存
+     */
+    public interface Weigher<T> {
+        long weigh(T value);
+    }
+
+    private final GuardedValueCache cache;
+    private final Callable<T> loader;
+    private final Weigher<? super T> weigher;
+    private T value;
+    private long cachedEpoch;
+    private boolean loaded = false;
+
+
+    /**
+     * @param cache  共享的内存上限
+     * @param loader 从数据源加载数据
+     * @param weigher
+     */
+    public GuardedValue(GuardedValueCache cache, Callable<T> loader, Weigher<? super T> weigher) {
+        this.cache = cache;
+        this.loader = loader;
+        this.weigher = weigher;
+    }
+
+    /**
+     * 每个缓存值的权重都为1，此时GuardedValueCache的上限就是缓存值的个数
+     */
+    public GuardedValue(GuardedValueCache cache, Callable<T> loader) {
+        this(cache, loader, new Weigher<T>() {
+            @Override
+            public long weigh(T value) {
+                return 1;
+            }
+        });
+    }
+
+
+    /**
+     * 获取数据，调用方必须通过heldLock持有这份数据所在资源的读锁或写锁，heldLock必须启用了写纪元
+     *
+     * @param heldLock 已经加锁的读写锁
+     * @return
+     * @throws Exception loader抛出的异常或者zookeeper的异常
+     */
+    public T get(ZkReentrantReadWriteLock heldLock) throws Exception {
+        if (!heldLock.isWriteEpochTracked()) {
+            throw new IllegalStateException("write epoch tracking is not enabled on the lock");
+        }
+        if (heldLock.isWriteLockHeld()) {
+            invalidate();
+            return loader.call();
+        }
+        if (!heldLock.isReadLockHeld()) {
+            throw new IllegalMonitorStateException("neither read lock nor write lock is held");
+        }
+        long epoch = heldLock.getWriteEpoch();
+        T cachedValue;
+        boolean hit;
+        synchronized (this) {
+            hit = loaded && cachedEpoch == epoch;
+            cachedValue = value;
+        }
+        if (hit) {
+            cache.touch(this);
+            return cachedValue;
+        }
+        T loadedValue = loader.call();
+        synchronized (this) {
+            value = loadedValue;
+            cachedEpoch = epoch;
+            loaded = true;
+        }
+        cache.put(this, weigher.weigh(loadedValue));
+        return loadedValue;
+    }
+
+
+    /**
+     * 清除缓存的值
+     */
+    public void invalidate() {
+        evict();
+        cache.remove(this);
+    }
+
+
+    /**
+     * 由GuardedValueCache在持有自身锁时调用，这里不能再反过来访问GuardedValueCache
+     */
+    synchronized void evict() {
+        value = null;
+        loaded = false;
+    }
+}
@@ -0,0 +1,68 @@
+package locks;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * GuardedValue共享的内存上限：按最近最少使用的顺序记录已经缓存的值，总权重超过上限时清除最久未使用的值
+ *
+ * @author mirror
+ */
+public class GuardedValueCache {
+    private final long maxWeight;
+    private long totalWeight = 0;
+    private final LinkedHashMap<GuardedValue<?>, Long> weights = new LinkedHashMap<GuardedValue<?>, Long>(16, 0.75f, true);
+
+    /**
+     * @param maxWeight 所有缓存值的权重之和的上限，权重的单位由GuardedValue的Weigher决定
+     */
+    public GuardedValueCache(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be positive: " + maxWeight);
+        }
+        this.maxWeight = maxWeight;
+    }
+
+
+    /**
+     * 记录一次新加载的值，并清除超出上限的最久未使用的值
+     */
+    synchronized void put(GuardedValue<?> value, long weight) {
+        Long previous = weights.put(value, weight);
+        totalWeight += weight - (previous == null ? 0 : previous);
+        Iterator<Map.Entry<GuardedValue<?>, Long>> iterator = weights.entrySet().iterator();
+        while (totalWeight > maxWeight && iterator.hasNext()) {
+            Map.Entry<GuardedValue<?>, Long> eldest = iterator.next();
+            if (eldest.getKey() == value) {
+                continue;
+            }
+            iterator.remove();
+            totalWeight -= eldest.getValue();
+            eldest.getKey().evict();
+        }
+    }
+
+
+    synchronized void touch(GuardedValue<?> value) {
+        weights.get(value);
+    }
+
+
+    synchronized void remove(GuardedValue<?> value) {
+        Long weight = weights.remove(value);
+        if (weight != null) {
+            totalWeight -= weight;
+        }
+    }
+
+
+    /**
+     * 当前缓存值的总权重
+     *
+     * @return
+     */
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+}
@@ -0,0 +1,74 @@
+package locks;
+
+import java.math.BigInteger;
+
+/**
+ * 锁队列子节点名称的生成和解析，同时识别两种格式：
+ * <p>
+ * 旧格式：r_/w_ + 32位UUID + _ + [优先级_] + 10位序号，例如 w_9f0c..._0000000012
+ * <p>
+ * 紧凑格式：R/W + 1位优先级 + 36进制的会话ID + 10位序号，例如 W03ic8z1lq0000000012
+ * <p>
+ * 两种格式可以在同一个队列中共存，排序、读写判断只依赖模式、优先级和序号，持有者由完整的节点名称识别
+ *
+ * @author mirror
+ */
+final class LockNodeName {
+    private static final String LEGACY_READ_PREFIX = "r_";
+    private static final String LEGACY_WRITE_PREFIX = "w_";
+    private static final char COMPACT_READ_MARKER = 'R';
+    private static final char COMPACT_WRITE_MARKER = 'W';
+    private static final int SEQUENCE_LENGTH = 10;
+
+    private LockNodeName() {
+    }
+
+
+    static String legacyPrefix(boolean writer, String ownerId, int priority) {
+        return (writer ? LEGACY_WRITE_PREFIX : LEGACY_READ_PREFIX) + ownerId + "_" + (priority == 0 ? "" : priority + "_");
+    }
+
+
+    /**
+     * 紧凑格式的前缀，会话ID按无符号数转换成36进制，同一会话上的多个客户端共用它，由序号区分
+     */
+    static String compactPrefix(boolean writer, long sessionId, int priority) {
+        String ownerTag = new BigInteger(Long.toHexString(sessionId), 16).toString(36);
+        return String.valueOf(writer ? COMPACT_WRITE_MARKER : COMPACT_READ_MARKER) + priority + ownerTag;
+    }
+
+
+    private static boolean isLegacy(String nodeName) {
+        return nodeName.length() > 1 && nodeName.charAt(1) == '_';
+    }
+
+
+    static boolean isWriter(String nodeName) {
+        return isLegacy(nodeName) ? nodeName.startsWith(LEGACY_WRITE_PREFIX) : nodeName.charAt(0) == COMPACT_WRITE_MARKER;
+    }
+
+
+    static boolean isReader(String nodeName) {
+        return isLegacy(nodeName) ? nodeName.startsWith(LEGACY_READ_PREFIX) : nodeName.charAt(0) == COMPACT_READ_MARKER;
+    }
+
+
+    /**
+     * 节点名称末尾由zookeeper追加的序号
+     */
+    static long sequenceOf(String nodeName) {
+        return Long.parseLong(nodeName.substring(nodeName.length() - SEQUENCE_LENGTH));
+    }
+
+
+    /**
+     * 节点名称中的优先级，旧格式中不带优先级的名称按0处理
+     */
+    static int priorityOf(String nodeName) {
+        if (!isLegacy(nodeName)) {
+            return nodeName.charAt(1) - '0';
+        }
+        String[] parts = nodeName.split("_");
+        return parts.length == 4 ? Integer.parseInt(parts[2]) : 0;
+    }
+}
@@ -0,0 +1,62 @@
+package locks;
+
+/**
+ * 锁资源等待队列的快照，用于在加锁前判断资源的竞争程度
+ *
+ * @author mirror
+ */
+public class LockQueueState {
+    private final int queueLength;
+    private final int position;
+    private final int readersAhead;
+    private final int writersAhead;
+
+    LockQueueState(int queueLength, int position, int readersAhead, int writersAhead) {
+        this.queueLength = queueLength;
+        this.position = position;
+        this.readersAhead = readersAhead;
+        this.writersAhead = writersAhead;
+    }
+
+    /**
+     * 队列中节点的总数（包括已经持有锁的节点）
+     *
+     * @return
+     */
+    public int getQueueLength() {
+        return queueLength;
+    }
+
+    /**
+     * 本客户端节点在队列中的位置，从0开始；本客户端没有入队时返回-1
+     *
+     * @return
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * 排在本客户端前面的读节点个数；没有入队时为队列中全部读节点的个数
+     *
+     * @return
+     */
+    public int getReadersAhead() {
+        return readersAhead;
+    }
+
+    /**
+     * 排在本客户端前面的写节点个数；没有入队时为队列中全部写节点的个数
+     *
+     * @return
+     */
+    public int getWritersAhead() {
+        return writersAhead;
+    }
+
+    @Override
+    public String toString() {
+        return "LockQueueState{queueLength=" + queueLength + ", position=" + position
+                + ", readersAhead=" + readersAhead + ", writersAhead=" + writersAhead + "}";
+    }
+}
@@ -0,0 +1,114 @@
+package locks;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 写锁的预约：创建时已经入队，后台线程跟踪前驱节点直到成为队头，真正需要锁时调用acquire，
+ * 入队和排队的时间因此不在调用方的关键路径上
+ * <p>
+ * 预约占据队列位置，排在它后面的客户端会等待它，所以预约应当只提前很短的时间。
+ * 预约期间不能再通过同一个锁对象加锁，否则抛出IllegalStateException。取消预约或者加锁失败时只删除预约的节点，锁对象可以继续使用
+ *
+ * @author mirror
+ */
+public class LockTicket {
+    private final ZkReentrantReadWriteLock.AbstractSync sync;
+    private final CountDownLatch trackingDone = new CountDownLatch(1);
+    private final Thread tracker;
+    private volatile boolean atHead = false;
+    private boolean finished = false;
+
+
+    LockTicket(final ZkReentrantReadWriteLock.AbstractSync sync) {
+        this.sync = sync;
+        this.tracker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    atHead = sync.awaitHead();
+                } catch (InterruptedException ignored) {
+                    // 预约被使用或者取消
+                } catch (KeeperException e) {
+                    // 跟踪只是提前排队，加锁时会重新检查队列
+                    e.printStackTrace();
+                } finally {
+                    trackingDone.countDown();
+                }
+            }
+        }, "zklock-ticket-tracker");
+        tracker.setDaemon(true);
+        tracker.start();
+    }
+
+
+    /**
+     * 后台跟踪是否已经到达队头
+     *
+     * @return
+     */
+    public boolean isAtHead() {
+        return atHead;
+    }
+
+
+    /**
+     * 使用预约加写锁 --- 有限时间等待。已经到达队头并且没有读锁时只需要一次占有写锁的请求；
+     * 失败时预约被取消，会话保留
+     *
+     * @param time
+     * @param unit
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public boolean acquire(long time, TimeUnit unit) throws KeeperException, InterruptedException {
+        checkNotFinished();
+        finished = true;
+        final long deadline = System.nanoTime() + unit.toNanos(time);
+        boolean locked = false;
+        try {
+            trackingDone.await(unit.toNanos(time), TimeUnit.NANOSECONDS);
+            stopTracking();
+            // 即使等待跟踪时已经超时，也至少检查一次队列
+            locked = sync.awaitWriteGrant(Math.max(deadline - System.nanoTime(), 1L), TimeUnit.NANOSECONDS);
+            return locked;
+        } finally {
+            if (!locked) {
+                stopTracking();
+                sync.releaseNode();
+            }
+        }
+    }
+
+
+    /**
+     * 取消预约，删除已经入队的节点；预约已经被使用时不做任何事
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void cancel() throws KeeperException, InterruptedException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        stopTracking();
+        sync.releaseNode();
+    }
+
+
+    private void stopTracking() throws InterruptedException {
+        tracker.interrupt();
+        tracker.join();
+    }
+
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("ticket has already been used or cancelled");
+        }
+    }
+}
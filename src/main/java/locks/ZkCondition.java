@@ -0,0 +1,87 @@
+package locks;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 绑定在写锁上的分布式条件变量：await释放写锁并在条件变量下的等待节点上阻塞，
+ * signal删除等待最久的等待节点将其唤醒，被唤醒的客户端重新排队获取写锁后await才返回
+ *
+ * @author mirror
+ */
+public class ZkCondition {
+    static final String DEFAULT_NAME = "default";
+
+    private final ZkReentrantReadWriteLock.AbstractSync sync;
+    private final String conditionName;
+
+    ZkCondition(ZkReentrantReadWriteLock.AbstractSync sync, String conditionName) {
+        if (conditionName.isEmpty() || conditionName.contains("/")) {
+            throw new IllegalArgumentException("illegal condition name: " + conditionName);
+        }
+        this.sync = sync;
+        this.conditionName = conditionName;
+    }
+
+
+    /**
+     * 等待signal --- 阻塞
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void await() throws KeeperException, InterruptedException {
+        await(-1);
+    }
+
+
+    /**
+     * 等待signal --- 有限时间等待，不论是否超时，返回前都已经重新持有写锁
+     *
+     * @param time
+     * @param unit
+     * @return 被signal时返回true，超时返回false
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public boolean await(long time, TimeUnit unit) throws KeeperException, InterruptedException {
+        return await(Math.max(0L, unit.toNanos(time)));
+    }
+
+
+    private boolean await(long nanosTimeout) throws KeeperException, InterruptedException {
+        sync.checkWriteLockHeld();
+        String waiterPath = sync.addConditionWaiter(conditionName);
+        int holds = sync.releaseForAwait();
+        try {
+            return sync.awaitConditionWaiter(waiterPath, nanosTimeout);
+        } finally {
+            sync.reacquireAfterAwait(holds);
+        }
+    }
+
+
+    /**
+     * 唤醒等待最久的一个等待者，调用方必须持有写锁
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void signal() throws KeeperException, InterruptedException {
+        sync.checkWriteLockHeld();
+        sync.signalCondition(conditionName, false);
+    }
+
+
+    /**
+     * 唤醒全部等待者，调用方必须持有写锁
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void signalAll() throws KeeperException, InterruptedException {
+        sync.checkWriteLockHeld();
+        sync.signalCondition(conditionName, true);
+    }
+}
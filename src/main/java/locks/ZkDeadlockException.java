@@ -0,0 +1,34 @@
+package locks;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.List;
+
+/**
+ * 等待锁时发现跨客户端的循环等待，本客户端是环上最晚入队的等待者，被选中放弃加锁。
+ * 抛出时本客户端在该锁上的节点已经删除，会话和锁对象仍然可用，调用方应当释放已经持有的其他锁后重试，死锁才会解除
+ *
+ * @author mirror
+ */
+public class ZkDeadlockException extends KeeperException {
+    private final List<String> cycle;
+
+    ZkDeadlockException(List<String> cycle) {
+        super(Code.SYSTEMERROR);
+        this.cycle = cycle;
+    }
+
+    /**
+     * 环上各等待者的持有者标识（进程名#线程ID），从本客户端开始
+     *
+     * @return
+     */
+    public List<String> getCycle() {
+        return cycle;
+    }
+
+    @Override
+    public String getMessage() {
+        return "deadlock detected, wait-for cycle: " + cycle;
+    }
+}
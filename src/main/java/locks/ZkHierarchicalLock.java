@@ -0,0 +1,283 @@
+package locks;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多粒度层级锁：资源名称形如 tenant/table/row，对资源加锁时在每个祖先节点上加意向锁，
+ * 不相交的子树可以并发加锁，而粗粒度的锁不需要枚举子孙就能阻塞它们
+ * <p>
+ * 每一层资源对应 /zklock_tree 下的一个持久节点，该层的等待队列是它下面名称以 lock_ 开头的顺序节点，
+ * 一个节点在它前面的所有节点都与自己兼容时获得该层的锁
+ *
+ * @author mirror
+ */
+public class ZkHierarchicalLock {
+
+    /**
+     * 加锁模式
+     */
+    public enum Mode {
+        /**
+         * 意向共享：准备在子孙资源上加S锁
+         */
+        IS,
+        /**
+         * 意向排他：准备在子孙资源上加X锁
+         */
+        IX,
+        /**
+         * 共享
+         */
+        S,
+        /**
+         * 排他
+         */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+                /*        IS     IX     S      X   */
+                /* IS */ {true, true, true, false},
+                /* IX */ {true, true, false, false},
+                /* S  */ {true, false, true, false},
+                /* X  */ {false, false, false, false}
+        };
+
+        public boolean compatibleWith(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /**
+         * 在祖先资源上需要加的意向锁
+         *
+         * @return
+         */
+        public Mode intention() {
+            return this == IS || this == S ? IS : IX;
+        }
+    }
+
+    private final static String TREE_ROOT = "/zklock_tree";
+    private final static String QUEUE_PREFIX = "lock_";
+
+    private final ZooKeeper zk;
+    private final String[] levelPaths;
+    private final LinkedList<String> heldNodes = new LinkedList<String>();
+    private Mode heldMode = null;
+
+
+    public ZkHierarchicalLock(String zkHost, int sessionTimeout, String resourcePath) throws IOException, InterruptedException {
+        this.levelPaths = levelPaths(resourcePath);
+        this.zk = AbstractZkSynchronizer.connect(zkHost, sessionTimeout);
+    }
+
+    public ZkHierarchicalLock(String zkHost, String resourcePath) throws IOException, InterruptedException {
+        this(zkHost, 60000, resourcePath);
+    }
+
+
+    private static String[] levelPaths(String resourcePath) {
+        String[] segments = resourcePath.split("/");
+        String[] paths = new String[segments.length];
+        StringBuilder path = new StringBuilder(TREE_ROOT);
+        for (int level = 0; level < segments.length; level++) {
+            String segment = segments[level];
+            if (segment.isEmpty() || segment.startsWith(QUEUE_PREFIX)) {
+                throw new IllegalArgumentException("illegal resource path: " + resourcePath);
+            }
+            path.append('/').append(segment);
+            paths[level] = path.toString();
+        }
+        return paths;
+    }
+
+
+    /**
+     * 加锁方法 --- 阻塞。从根到叶依次在祖先资源上加意向锁，最后在资源本身上加mode锁
+     *
+     * @param mode
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void lock(Mode mode) throws KeeperException, InterruptedException {
+        tryLock(mode, -1, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * 加锁方法 --- 有限时间等待，失败时释放已经加上的祖先意向锁
+     *
+     * @param mode
+     * @param time 小于0时一直等待
+     * @param unit
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public boolean tryLock(Mode mode, long time, TimeUnit unit) throws KeeperException, InterruptedException {
+        if (heldMode != null) {
+            throw new IllegalStateException("already locked in mode " + heldMode);
+        }
+        final long deadline = time < 0 ? Long.MAX_VALUE : System.nanoTime() + unit.toNanos(time);
+        boolean locked = false;
+        try {
+            for (int level = 0; level < levelPaths.length; level++) {
+                Mode levelMode = level == levelPaths.length - 1 ? mode : mode.intention();
+                if (!acquireLevel(levelPaths[level], levelMode, time < 0, deadline)) {
+                    return false;
+                }
+            }
+            heldMode = mode;
+            locked = true;
+            return true;
+        } finally {
+            if (!locked) {
+                releaseHeldNodes();
+            }
+        }
+    }
+
+
+    /**
+     * 释放锁方法：从叶到根删除各层的队列节点，并尝试删除已经空闲的资源节点
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void unlock() throws KeeperException, InterruptedException {
+        if (heldMode == null) {
+            throw new IllegalStateException("not locked");
+        }
+        heldMode = null;
+        releaseHeldNodes();
+        for (int level = levelPaths.length - 1; level >= 0; level--) {
+            try {
+                zk.delete(levelPaths[level], -1);
+            } catch (KeeperException ignored) {
+                break;
+            }
+        }
+    }
+
+
+    /**
+     * 关闭客户端连接
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        zk.close();
+    }
+
+
+    private void releaseHeldNodes() throws KeeperException, InterruptedException {
+        while (!heldNodes.isEmpty()) {
+            try {
+                zk.delete(heldNodes.getLast(), -1);
+            } catch (KeeperException.NoNodeException ignored) {
+
+            }
+            heldNodes.removeLast();
+        }
+    }
+
+
+    private boolean acquireLevel(String levelPath, Mode mode, boolean blocking, long deadline) throws KeeperException, InterruptedException {
+        String ownerNodeName = addQueueNode(levelPath, mode);
+        heldNodes.addLast(levelPath + "/" + ownerNodeName);
+        while (true) {
+            List<String> queue = getQueue(levelPath);
+            if (!queue.contains(ownerNodeName)) {
+                // 会话过期或者节点被删除，本客户端已经不在队列中，不能当作获得了该层的锁
+                throw KeeperException.create(KeeperException.Code.NONODE, levelPath + "/" + ownerNodeName);
+            }
+            String blocker = nearestIncompatibleNode(queue, ownerNodeName, mode);
+            if (blocker == null) {
+                return true;
+            }
+            long nanosTimeout = deadline - System.nanoTime();
+            if (!blocking && nanosTimeout <= 0L) {
+                return false;
+            }
+            final CountDownLatch nodeDeleteSignal = new CountDownLatch(1);
+            Stat exists = zk.exists(levelPath + "/" + blocker, new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    if (event.getType() == Event.EventType.NodeDeleted) {
+                        nodeDeleteSignal.countDown();
+                    }
+                }
+            });
+            if (exists == null) {
+                continue;
+            }
+            if (blocking) {
+                nodeDeleteSignal.await();
+            } else {
+                nodeDeleteSignal.await(nanosTimeout, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+
+    /**
+     * 在该层资源下创建代表本客户端的队列节点，资源节点不存在（或者刚被其他客户端删除）时先创建
+     */
+    private String addQueueNode(String levelPath, Mode mode) throws KeeperException, InterruptedException {
+        while (true) {
+            try {
+                String nodePath = zk.create(levelPath + "/" + QUEUE_PREFIX + mode.name() + "_", new byte[0],
+                        ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+                return nodePath.substring(levelPath.length() + 1);
+            } catch (KeeperException.NoNodeException e) {
+                AbstractZkSynchronizer.createPersistentPath(zk, levelPath);
+            }
+        }
+    }
+
+
+    private List<String> getQueue(String levelPath) throws KeeperException, InterruptedException {
+        List<String> queue = new ArrayList<String>();
+        for (String child : zk.getChildren(levelPath, false)) {
+            if (child.startsWith(QUEUE_PREFIX)) {
+                queue.add(child);
+            }
+        }
+        Collections.sort(queue, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return Long.valueOf(sequenceOf(o1)).compareTo(sequenceOf(o2));
+            }
+        });
+        return queue;
+    }
+
+
+    /**
+     * 本客户端前面最近的一个与自己不兼容的节点，没有时说明本客户端已经获得该层的锁
+     */
+    private static String nearestIncompatibleNode(List<String> queue, String ownerNodeName, Mode mode) {
+        for (int index = queue.indexOf(ownerNodeName) - 1; index >= 0; index--) {
+            String node = queue.get(index);
+            if (!mode.compatibleWith(modeOf(node))) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+
+    private static Mode modeOf(String nodeName) {
+        return Mode.valueOf(nodeName.substring(QUEUE_PREFIX.length(), nodeName.lastIndexOf('_')));
+    }
+
+
+    private static long sequenceOf(String nodeName) {
+        return Long.parseLong(nodeName.substring(nodeName.lastIndexOf('_') + 1));
+    }
+}
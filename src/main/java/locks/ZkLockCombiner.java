@@ -0,0 +1,241 @@
+package locks;
+
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 批量执行临界区：同一个锁资源上提交的任务先在本地排队，由其中一个线程获取一次分布式写锁，
+ * 在持有写锁期间把积累的任务一起执行完再释放，其他提交线程只需等待自己任务的结果。
+ * 执行者在自己的任务完成后把执行者的角色交给队列中最早的任务的提交线程，所以每个调用方的等待时间有界
+ * <p>
+ * 所有资源共用一个zookeeper会话
+ *
+ * @author mirror
+ */
+public class ZkLockCombiner {
+    private final ZooKeeper zk;
+    private final boolean ownsSession;
+    private final int maxBatchSize;
+    private final long maxHoldNanos;
+    private final ConcurrentMap<String, Combiner> combiners = new ConcurrentHashMap<String, Combiner>();
+
+    /**
+     * @param zkHost
+     * @param sessionTimeout
+     * @param maxBatchSize 一次持有写锁最多执行的任务个数
+     * @param maxHoldTime  一次持有写锁的最长时间，超过后不再取新的任务
+     * @param unit
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ZkLockCombiner(String zkHost, int sessionTimeout, int maxBatchSize, long maxHoldTime, TimeUnit unit) throws IOException, InterruptedException {
+        this(AbstractZkSynchronizer.connect(zkHost, sessionTimeout), true, maxBatchSize, maxHoldTime, unit);
+    }
+
+    public ZkLockCombiner(String zkHost, int maxBatchSize, long maxHoldTime, TimeUnit unit) throws IOException, InterruptedException {
+        this(zkHost, 60000, maxBatchSize, maxHoldTime, unit);
+    }
+
+    /**
+     * 使用已有的zookeeper会话，由调用方负责关闭
+     */
+    public ZkLockCombiner(ZooKeeper zk, int maxBatchSize, long maxHoldTime, TimeUnit unit) {
+        this(zk, false, maxBatchSize, maxHoldTime, unit);
+    }
+
+    private ZkLockCombiner(ZooKeeper zk, boolean ownsSession, int maxBatchSize, long maxHoldTime, TimeUnit unit) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.zk = zk;
+        this.ownsSession = ownsSession;
+        this.maxBatchSize = maxBatchSize;
+        this.maxHoldNanos = unit.toNanos(maxHoldTime);
+    }
+
+
+    /**
+     * 在resourceName的写锁保护下执行task，阻塞直到task执行完成
+     *
+     * @param resourceName 锁资源名称
+     * @param task         临界区
+     * @return task的返回值
+     * @throws ExecutionException   task抛出的异常，或者获取写锁失败的异常
+     * @throws InterruptedException 等待期间被中断，task被取消，不会再执行
+     */
+    public <T> T executeUnderLock(String resourceName, Callable<T> task) throws ExecutionException, InterruptedException {
+        Combiner combiner = combinerOf(resourceName);
+        BatchTask<T> batchTask = new BatchTask<T>(task);
+        combiner.pending.add(batchTask);
+        boolean interrupted = false;
+        while (!batchTask.isDone()) {
+            if (combiner.combining.tryLock()) {
+                try {
+                    while (!batchTask.isDone() && !combiner.pending.isEmpty()) {
+                        runBatch(resourceName, combiner);
+                    }
+                } finally {
+                    combiner.combining.unlock();
+                }
+                // 释放combining之后再检查一次队列，把执行者的角色交给最早的任务，避免在退出的瞬间提交的任务无人执行
+                handOffNext(combiner);
+            }
+            if (!batchTask.isDone()) {
+                try {
+                    batchTask.awaitTurn();
+                } catch (InterruptedException e) {
+                    if (batchTask.cancel(false)) {
+                        // 任务不再执行；执行者的角色可能已经交给了本线程，转交给下一个任务，否则其他等待者会一直等下去
+                        combiner.pending.remove(batchTask);
+                        handOffNext(combiner);
+                        throw e;
+                    }
+                    // 执行者已经开始执行这个任务，等待结果后再恢复中断状态
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return batchTask.get();
+    }
+
+
+    /**
+     * 关闭会话，会话由本对象创建时才关闭
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        combiners.clear();
+        if (ownsSession) {
+            zk.close();
+        }
+    }
+
+
+    private static void handOffNext(Combiner combiner) {
+        BatchTask<?> next = combiner.pending.peek();
+        if (next != null) {
+            next.handOff();
+        }
+    }
+
+
+    private Combiner combinerOf(String resourceName) {
+        Combiner combiner = combiners.get(resourceName);
+        if (combiner == null) {
+            Combiner created = new Combiner();
+            combiner = combiners.putIfAbsent(resourceName, created);
+            if (combiner == null) {
+                combiner = created;
+            }
+        }
+        return combiner;
+    }
+
+
+    /**
+     * 获取一次写锁，在maxBatchSize和maxHoldTime的限制内执行队列中的任务
+     */
+    private void runBatch(String resourceName, Combiner combiner) {
+        Queue<BatchTask<?>> pending = combiner.pending;
+        if (combiner.lock == null) {
+            combiner.lock = new ZkReentrantReadWriteLock(zk, resourceName, ZkReentrantReadWriteLock.Policy.NONFAIR);
+        }
+        ZkReentrantReadWriteLock.WriteLock writeLock = combiner.lock.writeLock();
+        try {
+            writeLock.lock();
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            // 加锁失败时删除可能已经入队的节点，锁对象的状态不确定，下次重新创建
+            combiner.lock.abandon();
+            combiner.lock = null;
+            for (int i = 0; i < maxBatchSize; ) {
+                BatchTask<?> batchTask = pending.poll();
+                if (batchTask == null) {
+                    break;
+                }
+                if (!batchTask.isCancelled()) {
+                    batchTask.fail(e);
+                    i++;
+                }
+            }
+            return;
+        }
+        try {
+            final long deadline = System.nanoTime() + maxHoldNanos;
+            // 至少执行一个任务，保证maxHoldTime很小时也能推进
+            for (int i = 0; i < maxBatchSize && (i == 0 || deadline - System.nanoTime() > 0L); ) {
+                BatchTask<?> batchTask = pending.poll();
+                if (batchTask == null) {
+                    break;
+                }
+                // 提交线程被中断后取消的任务直接跳过，不占用批次
+                if (!batchTask.isCancelled()) {
+                    batchTask.run();
+                    i++;
+                }
+            }
+        } finally {
+            try {
+                writeLock.unlock();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    private static final class Combiner {
+        private final Queue<BatchTask<?>> pending = new ConcurrentLinkedQueue<BatchTask<?>>();
+        private final ReentrantLock combining = new ReentrantLock();
+        /**
+         * 共享会话上的锁对象，只由持有combining的线程使用
+         */
+        private ZkReentrantReadWriteLock lock;
+    }
+
+
+    private static final class BatchTask<T> extends FutureTask<T> {
+        /**
+         * 任务完成或者被交给执行者角色时释放
+         */
+        private final Semaphore turn = new Semaphore(0);
+
+        BatchTask(Callable<T> callable) {
+            super(callable);
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+
+        void handOff() {
+            turn.release();
+        }
+
+        void awaitTurn() throws InterruptedException {
+            turn.acquire();
+        }
+
+        @Override
+        protected void done() {
+            turn.release();
+        }
+    }
+}
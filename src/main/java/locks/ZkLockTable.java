@@ -0,0 +1,272 @@
+package locks;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 大量细粒度资源的锁表：每个键的锁资源节点放在 /locks/&lt;桶&gt;/&lt;键&gt; 下，键按哈希分散到固定个数的桶里，
+ * 根节点和每个桶下的子节点数都不会随键的个数无限增长。所有键共享同一个zookeeper会话
+ * <p>
+ * 每次lock都使用一个独立的锁对象，不同线程对同一个键加锁时像不同客户端一样排队。释放后的锁对象不持有任何zookeeper资源，
+ * 按最近最少使用的顺序保留最多maxIdleLocks个供之后复用，所以本地内存只和同时持有的锁的个数有关
+ *
+ * @author mirror
+ */
+public class ZkLockTable {
+
+    /**
+     * 加锁模式
+     */
+    public enum Mode {
+        READ,
+        WRITE
+    }
+
+    public static final int DEFAULT_BUCKETS = 1024;
+    public static final int DEFAULT_MAX_IDLE_LOCKS = 1024;
+    private final static String TABLE_ROOT = "/locks";
+
+    private final ZooKeeper zk;
+    private final boolean ownsSession;
+    private final int buckets;
+    private final int maxIdleLocks;
+    private final ZkReentrantReadWriteLock.Policy policy;
+    private int idleLockCount = 0;
+    private final LinkedHashMap<String, LinkedList<ZkReentrantReadWriteLock>> idleLocks =
+            new LinkedHashMap<String, LinkedList<ZkReentrantReadWriteLock>>(16, 0.75f, true);
+
+
+    public ZkLockTable(String zkHost, int sessionTimeout, int buckets, int maxIdleLocks, ZkReentrantReadWriteLock.Policy policy) throws IOException, InterruptedException {
+        this(AbstractZkSynchronizer.connect(zkHost, sessionTimeout), true, buckets, maxIdleLocks, policy);
+    }
+
+    public ZkLockTable(String zkHost) throws IOException, InterruptedException {
+        this(zkHost, 60000, DEFAULT_BUCKETS, DEFAULT_MAX_IDLE_LOCKS, ZkReentrantReadWriteLock.Policy.NONFAIR);
+    }
+
+    /**
+     * 使用已有的zookeeper会话，由调用方负责关闭
+     *
+     * @param zk
+     * @param buckets      桶的个数，所有使用同一个表的客户端必须一致
+     * @param maxIdleLocks 保留的空闲锁对象个数上限
+     * @param policy
+     */
+    public ZkLockTable(ZooKeeper zk, int buckets, int maxIdleLocks, ZkReentrantReadWriteLock.Policy policy) {
+        this(zk, false, buckets, maxIdleLocks, policy);
+    }
+
+    private ZkLockTable(ZooKeeper zk, boolean ownsSession, int buckets, int maxIdleLocks, ZkReentrantReadWriteLock.Policy policy) {
+        if (buckets <= 0) {
+            throw new IllegalArgumentException("buckets must be positive: " + buckets);
+        }
+        this.zk = zk;
+        this.ownsSession = ownsSession;
+        this.buckets = buckets;
+        this.maxIdleLocks = maxIdleLocks;
+        this.policy = policy;
+    }
+
+
+    /**
+     * 加锁方法 --- 阻塞
+     *
+     * @param key  资源的键，不能包含'/'
+     * @param mode
+     * @return 已经持有的锁，通过它的unlock释放
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public ZkLock lock(String key, Mode mode) throws KeeperException, InterruptedException {
+        TableLock tableLock = new TableLock(key, mode);
+        tableLock.lock();
+        return tableLock;
+    }
+
+
+    /**
+     * 加锁方法 --- 有限时间等待
+     *
+     * @param key
+     * @param mode
+     * @param time
+     * @param unit
+     * @return 已经持有的锁，超时返回null
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public ZkLock tryLock(String key, Mode mode, long time, TimeUnit unit) throws KeeperException, InterruptedException {
+        TableLock tableLock = new TableLock(key, mode);
+        if (tableLock.tryLock(time, unit)) {
+            return tableLock;
+        }
+        // 加锁失败时锁对象已经删除了自己的节点，可以直接复用；抛出异常的锁对象状态不确定，删除节点后不再复用
+        tableLock.recycle();
+        return null;
+    }
+
+
+    /**
+     * 关闭锁表，会话由本对象创建时关闭会话，会话上的锁节点随之删除
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        synchronized (idleLocks) {
+            idleLocks.clear();
+            idleLockCount = 0;
+        }
+        if (ownsSession) {
+            zk.close();
+        }
+    }
+
+
+    /**
+     * 键对应的锁资源节点路径
+     *
+     * @param key
+     * @return
+     */
+    String lockPathOf(String key) {
+        if (key.isEmpty() || key.contains("/")) {
+            throw new IllegalArgumentException("illegal key: " + key);
+        }
+        return TABLE_ROOT + "/" + ((key.hashCode() & Integer.MAX_VALUE) % buckets) + "/" + key;
+    }
+
+
+    private ZkReentrantReadWriteLock borrow(String key) {
+        synchronized (idleLocks) {
+            LinkedList<ZkReentrantReadWriteLock> locks = idleLocks.get(key);
+            if (locks != null) {
+                ZkReentrantReadWriteLock lock = locks.removeFirst();
+                if (locks.isEmpty()) {
+                    idleLocks.remove(key);
+                }
+                idleLockCount--;
+                return lock;
+            }
+        }
+        return ZkReentrantReadWriteLock.atLockPath(zk, lockPathOf(key), policy);
+    }
+
+
+    private void giveBack(String key, ZkReentrantReadWriteLock lock) {
+        synchronized (idleLocks) {
+            LinkedList<ZkReentrantReadWriteLock> locks = idleLocks.get(key);
+            if (locks == null) {
+                locks = new LinkedList<ZkReentrantReadWriteLock>();
+                idleLocks.put(key, locks);
+            }
+            locks.addFirst(lock);
+            idleLockCount++;
+            Iterator<Map.Entry<String, LinkedList<ZkReentrantReadWriteLock>>> iterator = idleLocks.entrySet().iterator();
+            while (idleLockCount > maxIdleLocks && iterator.hasNext()) {
+                Map.Entry<String, LinkedList<ZkReentrantReadWriteLock>> eldest = iterator.next();
+                iterator.remove();
+                idleLockCount -= eldest.getValue().size();
+            }
+        }
+    }
+
+
+    /**
+     * lock返回的锁，可以重入；完全释放后锁对象被回收，不能再使用
+     */
+    private class TableLock implements ZkLock {
+        private final String key;
+        private final ZkReentrantReadWriteLock lock;
+        private final ZkLock delegate;
+        private boolean recycled = false;
+
+        TableLock(String key, Mode mode) {
+            this.key = key;
+            this.lock = borrow(key);
+            this.delegate = mode == Mode.WRITE ? lock.writeLock() : lock.readerLock();
+        }
+
+        @Override
+        public void lock() throws KeeperException, InterruptedException {
+            checkNotRecycled();
+            boolean held = isHeld();
+            boolean completed = false;
+            try {
+                delegate.lock();
+                completed = true;
+            } finally {
+                abandonIfFailed(held, completed);
+            }
+        }
+
+        @Override
+        public boolean tryLock() throws KeeperException, InterruptedException {
+            checkNotRecycled();
+            boolean held = isHeld();
+            boolean completed = false;
+            try {
+                boolean locked = delegate.tryLock();
+                completed = true;
+                return locked;
+            } finally {
+                abandonIfFailed(held, completed);
+            }
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException, KeeperException {
+            checkNotRecycled();
+            boolean held = isHeld();
+            boolean completed = false;
+            try {
+                boolean locked = delegate.tryLock(time, unit);
+                completed = true;
+                return locked;
+            } finally {
+                abandonIfFailed(held, completed);
+            }
+        }
+
+        private boolean isHeld() {
+            return lock.isReadLockHeld() || lock.isWriteLockHeld();
+        }
+
+        /**
+         * 加锁抛出异常时删除可能已经入队的节点：所有键共享一个长期存在的会话，遗留的临时节点会让之后对同一个键的加锁一直排在它后面
+         */
+        private void abandonIfFailed(boolean held, boolean completed) {
+            if (!completed && !held) {
+                lock.abandon();
+            }
+        }
+
+        @Override
+        public void unlock() throws KeeperException, InterruptedException {
+            checkNotRecycled();
+            delegate.unlock();
+            if (!isHeld()) {
+                recycle();
+            }
+        }
+
+        private void recycle() {
+            if (!recycled) {
+                recycled = true;
+                giveBack(key, lock);
+            }
+        }
+
+        private void checkNotRecycled() {
+            if (recycled) {
+                throw new IllegalStateException("lock on " + key + " has been fully released");
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package locks;
 
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
 import java.util.List;
@@ -12,34 +14,243 @@ import java.util.concurrent.TimeUnit;
  */
 public class ZkReentrantReadWriteLock {
 
+    /**
+     * 默认优先级，也是最低优先级
+     */
+    public static final int NORM_PRIORITY = 0;
+    /**
+     * 最高优先级
+     */
+    public static final int MAX_PRIORITY = 9;
+    /**
+     * 写优先模式下默认的读锁插队窗口
+     */
+    public static final long DEFAULT_BARGING_WINDOW_MILLIS = 100;
+
+    /**
+     * 加锁策略
+     */
+    public enum Policy {
+        /**
+         * 非公平：只要已经有读锁占用，新的读锁就可以插队
+         */
+        NONFAIR,
+        /**
+         * 公平：队头和本客户端之间有写节点时读锁不能插队
+         */
+        FAIR,
+        /**
+         * 写优先：写锁在队头等待读锁释放超过插队窗口后，新的读锁不能再插队，写锁的最长等待时间因此有界
+         */
+        WRITER_PREFERENCE
+    }
+
     private AbstractSync sync;
     private ReadLock readerLock;
     private WriteLock writerLock;
 
 
     public ZkReentrantReadWriteLock(String zkHost, int sessionTimeout, String resourceName) throws IOException, InterruptedException {
-        initZkLock(zkHost, sessionTimeout, resourceName, false);
+        initZkLock(AbstractZkSynchronizer.connect(zkHost, sessionTimeout), true, resourceName, Policy.NONFAIR, 0);
     }
 
     public ZkReentrantReadWriteLock(String zkHost, String resourceName) throws IOException, InterruptedException {
-        initZkLock(zkHost, 60000, resourceName, false);
+        initZkLock(AbstractZkSynchronizer.connect(zkHost, 60000), true, resourceName, Policy.NONFAIR, 0);
     }
 
     public ZkReentrantReadWriteLock(String zkHost, int sessionTimeout, String resourceName, boolean fair) throws IOException, InterruptedException {
-        initZkLock(zkHost, sessionTimeout, resourceName, fair);
+        initZkLock(AbstractZkSynchronizer.connect(zkHost, sessionTimeout), true, resourceName, fair ? Policy.FAIR : Policy.NONFAIR, 0);
     }
 
     public ZkReentrantReadWriteLock(String zkHost, String resourceName, boolean fair) throws IOException, InterruptedException {
-        initZkLock(zkHost, 60000, resourceName, fair);
+        initZkLock(AbstractZkSynchronizer.connect(zkHost, 60000), true, resourceName, fair ? Policy.FAIR : Policy.NONFAIR, 0);
+    }
+
+    public ZkReentrantReadWriteLock(String zkHost, int sessionTimeout, String resourceName, Policy policy) throws IOException, InterruptedException {
+        initZkLock(AbstractZkSynchronizer.connect(zkHost, sessionTimeout), true, resourceName, policy, TimeUnit.MILLISECONDS.toNanos(DEFAULT_BARGING_WINDOW_MILLIS));
+    }
+
+    public ZkReentrantReadWriteLock(String zkHost, String resourceName, Policy policy) throws IOException, InterruptedException {
+        initZkLock(AbstractZkSynchronizer.connect(zkHost, 60000), true, resourceName, policy, TimeUnit.MILLISECONDS.toNanos(DEFAULT_BARGING_WINDOW_MILLIS));
+    }
+
+    /**
+     * 写优先模式
+     *
+     * @param bargingWindow 写锁在队头等待读锁释放的这段时间内仍允许读锁插队，为0时写锁一到队头就禁止插队
+     * @param unit
+     */
+    public ZkReentrantReadWriteLock(String zkHost, int sessionTimeout, String resourceName, long bargingWindow, TimeUnit unit) throws IOException, InterruptedException {
+        initZkLock(AbstractZkSynchronizer.connect(zkHost, sessionTimeout), true, resourceName, Policy.WRITER_PREFERENCE, unit.toNanos(bargingWindow));
+    }
+
+    /**
+     * 使用已有的zookeeper会话，多个锁可以共享同一个会话。释放锁时不会关闭这个会话，锁对象可以重复加锁，
+     * 但同一个锁对象不能被多个线程同时使用
+     *
+     * @param zk           已经连接的会话，由调用方负责关闭
+     * @param resourceName
+     * @param policy
+     */
+    public ZkReentrantReadWriteLock(ZooKeeper zk, String resourceName, Policy policy) {
+        initZkLock(zk, false, resourceName, policy, TimeUnit.MILLISECONDS.toNanos(DEFAULT_BARGING_WINDOW_MILLIS));
+    }
+
+    private ZkReentrantReadWriteLock() {
+    }
+
+
+    /**
+     * 加锁抛出异常后删除可能已经入队的节点，不关闭会话
+     */
+    void abandon() {
+        try {
+            sync.releaseNode();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 锁资源节点放在指定路径下，使用共享会话，供ZkLockTable使用
+     *
+     * @param zk
+     * @param lockPath 锁资源节点的全路径
+     * @param policy
+     * @return
+     */
+    static ZkReentrantReadWriteLock atLockPath(ZooKeeper zk, String lockPath, Policy policy) {
+        ZkReentrantReadWriteLock lock = new ZkReentrantReadWriteLock();
+        lock.initSync(zk, false, lockPath, policy, TimeUnit.MILLISECONDS.toNanos(DEFAULT_BARGING_WINDOW_MILLIS));
+        return lock;
+    }
+
+    private void initZkLock(ZooKeeper zk, boolean ownsSession, String resourceName, Policy policy, long bargingWindowNanos) {
+        initSync(zk, ownsSession, AbstractZkSynchronizer.resourceLockPath(resourceName), policy, bargingWindowNanos);
     }
 
-    private void initZkLock(String zkHost, int sessionTimeout, String resourceName, boolean fair) throws IOException, InterruptedException {
-        sync = fair ? new FairSync(zkHost, sessionTimeout, resourceName) : new NonfairSync(zkHost, sessionTimeout, resourceName);
+    private void initSync(ZooKeeper zk, boolean ownsSession, String lockPath, Policy policy, long bargingWindowNanos) {
+        switch (policy) {
+            case FAIR:
+                sync = new FairSync(zk, ownsSession, lockPath);
+                break;
+            case WRITER_PREFERENCE:
+                sync = new WriterPreferenceSync(zk, ownsSession, lockPath, bargingWindowNanos);
+                break;
+            default:
+                sync = new NonfairSync(zk, ownsSession, lockPath);
+        }
         readerLock = new ReadLock(this);
         writerLock = new WriteLock(this);
     }
 
 
+    /**
+     * 启用租约模式，必须在加锁之前调用。持有者需要在租约时长内调用renewLease续约，
+     * 否则等待者会收回它的锁，持有者可以通过isLeaseValid或者renewLease的返回值发现锁已被收回
+     *
+     * @param time 租约时长，小于等于0时关闭租约
+     * @param unit
+     */
+    public void setLeaseTime(long time, TimeUnit unit) {
+        sync.setLeaseTime(time, unit);
+    }
+
+    /**
+     * 启用死锁检测，必须在加锁之前调用。等待时发布等待关系，每隔checkInterval沿等待图检查一次，
+     * 发现跨客户端的循环等待时，环上最晚入队的等待者的lock/tryLock抛出ZkDeadlockException。
+     * 一个线程持有的多把锁都需要启用，等待图才能经过它们
+     *
+     * @param checkInterval 检测间隔，小于等于0时关闭死锁检测
+     * @param unit
+     */
+    public void setDeadlockDetection(long checkInterval, TimeUnit unit) {
+        sync.setDeadlockDetection(checkInterval, unit);
+    }
+
+    /**
+     * 使用紧凑格式的节点名称，缩短长队列上getChildren返回的数据量，只影响之后加锁创建的节点。
+     * 旧版本客户端不能识别紧凑格式，需要在所有使用该资源的客户端都升级之后再开启
+     *
+     * @param compactNodeNames
+     */
+    public void setCompactNodeNames(boolean compactNodeNames) {
+        sync.setCompactNodeNames(compactNodeNames);
+    }
+
+    /**
+     * 续约，建议在业务每推进一步之后调用
+     *
+     * @return 锁已被收回或者没有持有锁时返回false
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public boolean renewLease() throws KeeperException, InterruptedException {
+        return sync.renewLease();
+    }
+
+    /**
+     * 本地判断租约是否仍然有效，不访问zookeeper
+     *
+     * @return
+     */
+    public boolean isLeaseValid() {
+        return sync.isLeaseValid();
+    }
+
+    /**
+     * 当前持有的锁的fencing token，写入受保护的资源时带上它，资源方拒绝比已见过的token更小的请求
+     *
+     * @return 没有持有锁或者没有启用租约时返回-1
+     */
+    public long getFencingToken() {
+        return sync.getFencingToken();
+    }
+
+    /**
+     * 启用写纪元，必须在加锁之前调用，同一资源的所有客户端都要启用，GuardedValue依赖它判断缓存是否有效。
+     * 写纪元在写锁占有锁的事务中推进，不增加请求次数；没有启用时加解锁不访问写纪元节点
+     *
+     * @param writeEpochTracking
+     */
+    public void setWriteEpochTracking(boolean writeEpochTracking) {
+        sync.setWriteEpochTracking(writeEpochTracking);
+    }
+
+    public boolean isWriteEpochTracked() {
+        return sync.writeEpochTracked();
+    }
+
+    /**
+     * 锁资源的写纪元，每次有写锁占有锁后都会改变，可以用来判断持有读锁期间缓存的数据是否仍然有效
+     *
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws IllegalStateException 没有启用写纪元
+     */
+    public long getWriteEpoch() throws KeeperException, InterruptedException {
+        return sync.getWriteEpoch();
+    }
+
+    /**
+     * 本对象当前是否持有读锁
+     *
+     * @return
+     */
+    public boolean isReadLockHeld() {
+        return sync.isOwnerReadLock();
+    }
+
+    /**
+     * 本对象当前是否持有写锁
+     *
+     * @return
+     */
+    public boolean isWriteLockHeld() {
+        return sync.isOwnerLock() && !sync.isOwnerReadLock();
+    }
+
     public ZkReentrantReadWriteLock.WriteLock writeLock() {
         return writerLock;
     }
@@ -48,6 +259,37 @@ public class ZkReentrantReadWriteLock {
         return readerLock;
     }
 
+    /**
+     * 锁资源的队列长度，只读取锁资源节点的stat，开销很小
+     *
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public int getQueueLength() throws KeeperException, InterruptedException {
+        return sync.getQueueLength();
+    }
+
+    /**
+     * 锁资源的队列状态：队列长度、本客户端的位置以及前面的读写节点个数
+     *
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public LockQueueState getQueueState() throws KeeperException, InterruptedException {
+        return sync.getQueueState();
+    }
+
+    /**
+     * 根据最近一次观察到的子节点列表返回队列状态，不访问zookeeper
+     *
+     * @return
+     */
+    public LockQueueState getCachedQueueState() {
+        return sync.getCachedQueueState();
+    }
+
     public static class ReadLock implements ZkLock {
         private final AbstractSync sync;
 
@@ -62,6 +304,17 @@ public class ZkReentrantReadWriteLock {
             sync.readLock(1);
         }
 
+        /**
+         * 按优先级加锁 --- 阻塞，优先级高的节点会排到先入队的低优先级节点前面
+         *
+         * @param priority NORM_PRIORITY到MAX_PRIORITY之间
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        public void lock(int priority) throws KeeperException, InterruptedException {
+            sync.readLock(1, priority);
+        }
+
 
         @Override
         public boolean tryLock() throws KeeperException, InterruptedException {
@@ -83,6 +336,24 @@ public class ZkReentrantReadWriteLock {
             }
         }
 
+        /**
+         * 带准入控制的有限时间加锁：队列长度已经达到maxQueueDepth时直接返回失败，不创建任何节点
+         *
+         * @param maxQueueDepth 允许的最大队列长度
+         * @param time
+         * @param unit
+         * @return
+         * @throws InterruptedException
+         * @throws KeeperException
+         */
+        public boolean tryLock(int maxQueueDepth, long time, TimeUnit unit) throws InterruptedException, KeeperException {
+            if (!sync.admit(maxQueueDepth)) {
+                sync.close();
+                return false;
+            }
+            return tryLock(time, unit);
+        }
+
         @Override
         public void unlock() throws KeeperException, InterruptedException {
             sync.release(1);
@@ -104,6 +375,17 @@ public class ZkReentrantReadWriteLock {
             sync.acquire(1);
         }
 
+        /**
+         * 按优先级加锁 --- 阻塞，优先级高的节点会排到先入队的低优先级节点前面
+         *
+         * @param priority NORM_PRIORITY到MAX_PRIORITY之间
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        public void lock(int priority) throws KeeperException, InterruptedException {
+            sync.acquire(1, priority);
+        }
+
 
         @Override
         public boolean tryLock() throws KeeperException, InterruptedException {
@@ -125,11 +407,60 @@ public class ZkReentrantReadWriteLock {
             }
         }
 
+        /**
+         * 带准入控制的有限时间加锁：队列长度已经达到maxQueueDepth时直接返回失败，不创建任何节点
+         *
+         * @param maxQueueDepth 允许的最大队列长度
+         * @param time
+         * @param unit
+         * @return
+         * @throws InterruptedException
+         * @throws KeeperException
+         */
+        public boolean tryLock(int maxQueueDepth, long time, TimeUnit unit) throws InterruptedException, KeeperException {
+            if (!sync.admit(maxQueueDepth)) {
+                sync.close();
+                return false;
+            }
+            return tryLock(time, unit);
+        }
+
         @Override
         public void unlock() throws KeeperException, InterruptedException {
             sync.release(1);
         }
 
+        /**
+         * 预约写锁：立即入队并在后台跟踪前驱节点，之后通过LockTicket.acquire加锁或者cancel放弃
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        public LockTicket reserve() throws KeeperException, InterruptedException {
+            sync.enqueueWriter();
+            return new LockTicket(sync);
+        }
+
+        /**
+         * 创建写锁上的条件变量，名称相同的条件变量在所有客户端之间共享
+         *
+         * @param conditionName 条件变量名称，不能包含'/'
+         * @return
+         */
+        public ZkCondition newCondition(String conditionName) {
+            return new ZkCondition(sync, conditionName);
+        }
+
+        /**
+         * 创建写锁上的默认条件变量
+         *
+         * @return
+         */
+        public ZkCondition newCondition() {
+            return newCondition(ZkCondition.DEFAULT_NAME);
+        }
+
     }
 
 
@@ -137,31 +468,32 @@ public class ZkReentrantReadWriteLock {
      * Nonfair version of Sync
      */
     static final class NonfairSync extends AbstractSync {
-        NonfairSync(String zkHost, int sessionTimeout, String resourceName) throws IOException, InterruptedException {
-            super(zkHost, sessionTimeout, resourceName);
+        NonfairSync(ZooKeeper zk, boolean ownsSession, String lockPath) {
+            super(zk, ownsSession, lockPath);
         }
 
         @Override
-        public void readLock(int i) throws KeeperException, InterruptedException {
+        public void readLock(int i, int priority) throws KeeperException, InterruptedException {
             if (isOwnerLock()) {
                 addReenTranLock(i);
                 return;
             }
+            checkNotQueued();
             if (!existsLockPath()) {
                 createNodeResource();
             }
-            ownerLockName = addChildren(readerNodePrefix());
+            ownerLockName = addChildren(readerNodePrefix(priority));
             while (!isOwnerLock()) {
                 List<String> locks = getChildrenList();
                 attemptNonFairLock(locks);
                 if (isOwnerLock()) {
                     break;
                 }
-                int previousWatchNodeIndex = readerPreviousWatchNodeIndex(locks);
-                if (previousWatchNodeIndex == -1) {
+                String previousWatchNode = readerWatchNode(locks);
+                if (previousWatchNode == null) {
                     continue;
                 }
-                watchPreviousNode(locks.get(previousWatchNodeIndex));
+                watchPreviousNode(previousWatchNode);
             }
         }
 
@@ -172,6 +504,7 @@ public class ZkReentrantReadWriteLock {
                 addReenTranLock(i);
                 return true;
             }
+            checkNotQueued();
             if (!existsLockPath()) {
                 createNodeResource();
             }
@@ -184,11 +517,11 @@ public class ZkReentrantReadWriteLock {
                 if (isOwnerLock()) {
                     return true;
                 }
-                int previousWatchNodeIndex = readerPreviousWatchNodeIndex(locks);
-                if (previousWatchNodeIndex == -1) {
+                String previousWatchNode = readerWatchNode(locks);
+                if (previousWatchNode == null) {
                     continue;
                 }
-                watchPreviousNode(locks.get(previousWatchNodeIndex), time, unit);
+                watchPreviousNode(previousWatchNode, time, unit);
                 nanosTimeout = deadline - System.nanoTime();
             }
             return isOwnerLock();
@@ -196,8 +529,9 @@ public class ZkReentrantReadWriteLock {
 
         private void attemptNonFairLock(List<String> locks) throws KeeperException, InterruptedException {
             if (locks.get(0).equals(ownerLockName)) {
-                startupAddReadLockCount();
-                setOwnerLock(true);
+                if (overtakenWriterHolder(locks) == null && startupAddReadLockCount()) {
+                    setOwnerLock(true);
+                }
             } else if (getReadLockCount() > 0 && attemptAddReadLockCount()) {
                 setOwnerLock(true);
             }
@@ -210,6 +544,10 @@ public class ZkReentrantReadWriteLock {
                 addReenTranLock(1);
                 return true;
             }
+            checkNotQueued();
+            if (certainToFailRead()) {
+                return false;
+            }
             if (!existsLockPath()) {
                 createNodeResource();
             }
@@ -229,39 +567,68 @@ public class ZkReentrantReadWriteLock {
      * Fair version of Sync
      */
     static final class FairSync extends AbstractSync {
-        FairSync(String zkHost, int sessionTimeout, String resourceName) throws IOException, InterruptedException {
-            super(zkHost, sessionTimeout, resourceName);
+        FairSync(ZooKeeper zk, boolean ownsSession, String lockPath) {
+            super(zk, ownsSession, lockPath);
         }
 
 
+        /**
+         * 公平模式下除了没有读锁占用之外，队头之后排着写节点时读锁也不能插队，这需要读取一次子节点列表
+         */
         @Override
-        public void readLock(int i) throws KeeperException, InterruptedException {
+        protected boolean certainToFailRead() throws KeeperException, InterruptedException {
+            Stat lockPathStat = new Stat();
+            int readLockCount = readLockPathSnapshot(lockPathStat);
+            if (readLockCount == -1 || lockPathStat.getNumChildren() == 0) {
+                return false;
+            }
+            if (readLockCount == 0) {
+                return true;
+            }
+            try {
+                List<String> locks = getChildrenList();
+                for (int lockIndex = 1; lockIndex < locks.size(); lockIndex++) {
+                    if (LockNodeName.isWriter(locks.get(lockIndex))) {
+                        return true;
+                    }
+                }
+            } catch (KeeperException.NoNodeException ignored) {
+
+            }
+            return false;
+        }
+
+
+        @Override
+        public void readLock(int i, int priority) throws KeeperException, InterruptedException {
             if (isOwnerLock()) {
                 addReenTranLock(i);
                 return;
             }
+            checkNotQueued();
             if (!existsLockPath()) {
                 createNodeResource();
             }
-            ownerLockName = addChildren(readerNodePrefix());
+            ownerLockName = addChildren(readerNodePrefix(priority));
             while (!isOwnerLock()) {
                 List<String> locks = getChildrenList();
                 attemptFairLock(locks);
                 if (isOwnerLock()) {
                     break;
                 }
-                int previousWatchNodeIndex = readerPreviousWatchNodeIndex(locks);
-                if (previousWatchNodeIndex == -1) {
+                String previousWatchNode = readerWatchNode(locks);
+                if (previousWatchNode == null) {
                     continue;
                 }
-                watchPreviousNode(locks.get(previousWatchNodeIndex));
+                watchPreviousNode(previousWatchNode);
             }
         }
 
         private void attemptFairLock(List<String> locks) throws KeeperException, InterruptedException {
             if (locks.get(0).equals(ownerLockName)) {
-                startupAddReadLockCount();
-                setOwnerLock(true);
+                if (overtakenWriterHolder(locks) == null && startupAddReadLockCount()) {
+                    setOwnerLock(true);
+                }
             } else if (getReadLockCount() > 0 && !betweenHead2ownerLockHasWriterLock(locks) && attemptAddReadLockCount()) {
                 setOwnerLock(true);
             }
@@ -274,6 +641,7 @@ public class ZkReentrantReadWriteLock {
                 addReenTranLock(i);
                 return true;
             }
+            checkNotQueued();
             if (!existsLockPath()) {
                 createNodeResource();
             }
@@ -286,11 +654,11 @@ public class ZkReentrantReadWriteLock {
                 if (isOwnerLock()) {
                     return true;
                 }
-                int previousWatchNodeIndex = readerPreviousWatchNodeIndex(locks);
-                if (previousWatchNodeIndex == -1) {
+                String previousWatchNode = readerWatchNode(locks);
+                if (previousWatchNode == null) {
                     continue;
                 }
-                watchPreviousNode(locks.get(previousWatchNodeIndex), time, unit);
+                watchPreviousNode(previousWatchNode, time, unit);
                 nanosTimeout = deadline - System.nanoTime();
             }
             return isOwnerLock();
@@ -303,6 +671,10 @@ public class ZkReentrantReadWriteLock {
                 addReenTranLock(1);
                 return true;
             }
+            checkNotQueued();
+            if (certainToFailRead()) {
+                return false;
+            }
             if (!existsLockPath()) {
                 createNodeResource();
             }
@@ -317,41 +689,212 @@ public class ZkReentrantReadWriteLock {
 
     }
 
+    /**
+     * Writer-preferring version of Sync
+     */
+    static final class WriterPreferenceSync extends AbstractSync {
+        private final long bargingWindowNanos;
+        private String barrierRaisedFor = null;
+
+        WriterPreferenceSync(ZooKeeper zk, boolean ownsSession, String lockPath, long bargingWindowNanos) {
+            super(zk, ownsSession, lockPath);
+            this.bargingWindowNanos = bargingWindowNanos;
+        }
+
+
+        @Override
+        public void readLock(int i, int priority) throws KeeperException, InterruptedException {
+            if (isOwnerLock()) {
+                addReenTranLock(i);
+                return;
+            }
+            checkNotQueued();
+            if (!existsLockPath()) {
+                createNodeResource();
+            }
+            ownerLockName = addChildren(readerNodePrefix(priority));
+            while (!isOwnerLock()) {
+                List<String> locks = getChildrenList();
+                attemptWriterPreferenceLock(locks);
+                if (isOwnerLock()) {
+                    break;
+                }
+                String previousWatchNode = readerWatchNode(locks);
+                if (previousWatchNode == null) {
+                    continue;
+                }
+                watchPreviousNode(previousWatchNode);
+            }
+        }
+
+
+        @Override
+        public boolean tryReadLock(int i, long time, TimeUnit unit) throws KeeperException, InterruptedException {
+            if (isOwnerLock()) {
+                addReenTranLock(i);
+                return true;
+            }
+            checkNotQueued();
+            if (!existsLockPath()) {
+                createNodeResource();
+            }
+            ownerLockName = addChildren(readerNodePrefix());
+            long nanosTimeout = unit.toNanos(time);
+            final long deadline = System.nanoTime() + nanosTimeout;
+            while (!isOwnerLock() && nanosTimeout > 0L) {
+                List<String> locks = getChildrenList();
+                attemptWriterPreferenceLock(locks);
+                if (isOwnerLock()) {
+                    return true;
+                }
+                String previousWatchNode = readerWatchNode(locks);
+                if (previousWatchNode == null) {
+                    continue;
+                }
+                watchPreviousNode(previousWatchNode, time, unit);
+                nanosTimeout = deadline - System.nanoTime();
+            }
+            return isOwnerLock();
+        }
+
+
+        @Override
+        public boolean tryReadLock() throws KeeperException, InterruptedException {
+            if (isOwnerLock()) {
+                addReenTranLock(1);
+                return true;
+            }
+            checkNotQueued();
+            if (certainToFailRead()) {
+                return false;
+            }
+            if (!existsLockPath()) {
+                createNodeResource();
+            }
+            ownerLockName = addChildren(readerNodePrefix());
+            List<String> locks = getChildrenList();
+            attemptWriterPreferenceLock(locks);
+            return isOwnerLock();
+        }
+
+
+        /**
+         * 与非公平模式相同，只是前面的写锁已经竖起屏障时不再插队
+         */
+        private void attemptWriterPreferenceLock(List<String> locks) throws KeeperException, InterruptedException {
+            if (locks.get(0).equals(ownerLockName)) {
+                if (overtakenWriterHolder(locks) == null && startupAddReadLockCount()) {
+                    setOwnerLock(true);
+                }
+            } else if (getReadLockCount() > 0 && !writerBarrierAhead(locks) && attemptAddReadLockCount()) {
+                setOwnerLock(true);
+            }
+        }
+
+
+        @Override
+        protected void beforeAwaitReaders(long headSince) throws KeeperException, InterruptedException {
+            if (!ownerLockName.equals(barrierRaisedFor) && System.nanoTime() - headSince >= bargingWindowNanos) {
+                raiseWriterBarrier();
+                barrierRaisedFor = ownerLockName;
+            }
+        }
+
+
+        @Override
+        protected long readerWaitBound(long headSince) {
+            if (ownerLockName.equals(barrierRaisedFor)) {
+                return -1;
+            }
+            return Math.max(bargingWindowNanos - (System.nanoTime() - headSince), 1L);
+        }
+    }
+
     abstract static class AbstractSync extends AbstractZkSynchronizer {
 
         private final String identifyId;
+        private volatile boolean compactNodeNames = false;
 
         protected String readerNodePrefix() {
-            return READ_LOCK_PREFIX + identifyId + "_";
+            return readerNodePrefix(NORM_PRIORITY);
         }
 
         protected String writerNodePrefix() {
-            return WRITE_LOCK_PREFIX + identifyId + "_";
+            return writerNodePrefix(NORM_PRIORITY);
+        }
+
+        /**
+         * 旧格式中默认优先级沿用最初的节点名称，其他优先级在序号前加上一段优先级
+         */
+        protected String readerNodePrefix(int priority) {
+            return nodePrefix(false, priority);
         }
 
-        AbstractSync(String zkHost, int sessionTimeout, String resourceName) throws IOException, InterruptedException {
-            super(zkHost, sessionTimeout, resourceName);
+        protected String writerNodePrefix(int priority) {
+            return nodePrefix(true, priority);
+        }
+
+        private String nodePrefix(boolean writer, int priority) {
+            if (priority < NORM_PRIORITY || priority > MAX_PRIORITY) {
+                throw new IllegalArgumentException("priority must be between " + NORM_PRIORITY + " and " + MAX_PRIORITY + ": " + priority);
+            }
+            return compactNodeNames ? LockNodeName.compactPrefix(writer, getSessionId(), priority)
+                    : LockNodeName.legacyPrefix(writer, identifyId, priority);
+        }
+
+        void setCompactNodeNames(boolean compactNodeNames) {
+            this.compactNodeNames = compactNodeNames;
+        }
+
+        AbstractSync(ZooKeeper zk, boolean ownsSession, String lockPath) {
+            super(zk, ownsSession, lockPath);
             identifyId = UUID.randomUUID().toString().replaceAll("-", "");
         }
 
 
         public void acquire(int i) throws KeeperException, InterruptedException {
+            acquire(i, NORM_PRIORITY);
+        }
+
+
+        public void acquire(int i, int priority) throws KeeperException, InterruptedException {
             if (isOwnerLock()) {
                 addReenTranLock(i);
                 return;
             }
+            checkNotQueued();
             if (!existsLockPath()) {
                 createNodeResource();
             }
-            ownerLockName = addChildren(writerNodePrefix());
+            ownerLockName = addChildren(writerNodePrefix(priority));
+            long headSince = -1;
             while (!isOwnerLock()) {
+                Stat lockPathStat = new Stat();
+                int readLockCount = getReadLockCount(lockPathStat);
                 List<String> locks = getChildrenList();
                 if (locks.get(0).equals(ownerLockName)) {
-                    if (getReadLockCount() == 0) {
-                        setOwnerLock(true);
-                        break;
+                    String holder = overtakenWriterHolder(locks);
+                    if (holder != null) {
+                        watchPreviousNode(holder);
+                        continue;
+                    }
+                    if (readLockCount == 0) {
+                        if (grantWriteLock(lockPathStat)) {
+                            setOwnerLock(true);
+                            break;
+                        }
+                        continue;
+                    }
+                    if (headSince == -1) {
+                        headSince = System.nanoTime();
+                    }
+                    beforeAwaitReaders(headSince);
+                    long waitBound = readerWaitBound(headSince);
+                    if (waitBound < 0) {
+                        watchReadCount();
+                    } else {
+                        watchReadCount(waitBound, TimeUnit.NANOSECONDS);
                     }
-                    watchReadCount();
                     continue;
                 }
                 int previousWatchNodeIndex = writerPreviousWatchNodeIndex(locks);
@@ -368,27 +911,72 @@ public class ZkReentrantReadWriteLock {
                 addReenTranLock(i);
                 return true;
             }
+            checkNotQueued();
+            if (!existsLockPath()) {
+                createNodeResource();
+            }
+            ownerLockName = addChildren(writerNodePrefix());
+            return awaitWriteGrant(time, unit);
+        }
+
+
+        /**
+         * 为预约入队：创建写节点但不等待，之后由awaitWriteGrant完成加锁
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void enqueueWriter() throws KeeperException, InterruptedException {
+            if (isOwnerLock()) {
+                throw new IllegalStateException("lock is already held");
+            }
+            checkNotQueued();
             if (!existsLockPath()) {
                 createNodeResource();
             }
             ownerLockName = addChildren(writerNodePrefix());
+        }
+
+
+        /**
+         * 已经入队的写节点等待到队头并且读锁全部释放后占有写锁 --- 有限时间等待
+         */
+        boolean awaitWriteGrant(long time, TimeUnit unit) throws KeeperException, InterruptedException {
             long nanosTimeout = unit.toNanos(time);
             final long deadline = System.nanoTime() + nanosTimeout;
+            long headSince = -1;
             while (!isOwnerLock() && nanosTimeout > 0L) {
+                Stat lockPathStat = new Stat();
+                int readLockCount = getReadLockCount(lockPathStat);
                 List<String> locks = getChildrenList();
                 if (locks.get(0).equals(ownerLockName)) {
-                    if (getReadLockCount() == 0) {
-                        setOwnerLock(true);
-                        break;
+                    String holder = overtakenWriterHolder(locks);
+                    if (holder != null) {
+                        watchPreviousNode(holder, nanosTimeout, TimeUnit.NANOSECONDS);
+                        nanosTimeout = deadline - System.nanoTime();
+                        continue;
+                    }
+                    if (readLockCount == 0) {
+                        if (grantWriteLock(lockPathStat)) {
+                            setOwnerLock(true);
+                            break;
+                        }
+                        continue;
                     }
-                    watchReadCount(i, unit);
+                    if (headSince == -1) {
+                        headSince = System.nanoTime();
+                    }
+                    beforeAwaitReaders(headSince);
+                    long waitBound = readerWaitBound(headSince);
+                    watchReadCount(waitBound < 0 ? nanosTimeout : Math.min(nanosTimeout, waitBound), TimeUnit.NANOSECONDS);
+                    nanosTimeout = deadline - System.nanoTime();
                     continue;
                 }
                 int previousWatchNodeIndex = writerPreviousWatchNodeIndex(locks);
                 if (previousWatchNodeIndex == -1) {
                     throw KeeperException.create(KeeperException.Code.SYSTEMERROR);
                 }
-                watchPreviousNode(locks.get(previousWatchNodeIndex), time, unit);
+                watchPreviousNode(locks.get(previousWatchNodeIndex), nanosTimeout, TimeUnit.NANOSECONDS);
                 nanosTimeout = deadline - System.nanoTime();
             }
             return isOwnerLock();
@@ -401,19 +989,138 @@ public class ZkReentrantReadWriteLock {
                 addReenTranLock(1);
                 return true;
             }
+            checkNotQueued();
+            if (certainToFailWrite()) {
+                return false;
+            }
             if (!existsLockPath()) {
                 createNodeResource();
             }
             ownerLockName = addChildren(writerNodePrefix());
+            Stat lockPathStat = new Stat();
+            int readLockCount = getReadLockCount(lockPathStat);
             List<String> locks = getChildrenList();
-            if (locks.get(0).equals(ownerLockName) && getReadLockCount() == 0) {
+            if (locks.get(0).equals(ownerLockName) && readLockCount == 0
+                    && overtakenWriterHolder(locks) == null && grantWriteLock(lockPathStat)) {
                 setOwnerLock(true);
                 return true;
             }
             return false;
         }
 
-        public abstract void readLock(int i) throws KeeperException, InterruptedException;
+        /**
+         * 队列长度小于maxQueueDepth或者本客户端已经持有锁时允许加锁
+         */
+        boolean admit(int maxQueueDepth) throws KeeperException, InterruptedException {
+            return isOwnerLock() || getQueueLength() < maxQueueDepth;
+        }
+
+
+        /**
+         * 只读判断非阻塞写锁是否一定失败：已经有节点排队时新的写节点不可能位于队头，有读锁占用时也不能占有锁。
+         * 一定失败时直接返回，不再创建和删除节点
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        protected boolean certainToFailWrite() throws KeeperException, InterruptedException {
+            Stat lockPathStat = new Stat();
+            int readLockCount = readLockPathSnapshot(lockPathStat);
+            return readLockCount > 0 || (readLockCount == 0 && lockPathStat.getNumChildren() > 0);
+        }
+
+
+        /**
+         * 只读判断非阻塞读锁是否一定失败：已经有节点排队（新的读节点不在队头）并且没有读锁占用可以插队
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        protected boolean certainToFailRead() throws KeeperException, InterruptedException {
+            Stat lockPathStat = new Stat();
+            int readLockCount = readLockPathSnapshot(lockPathStat);
+            return readLockCount == 0 && lockPathStat.getNumChildren() > 0;
+        }
+
+        public void readLock(int i) throws KeeperException, InterruptedException {
+            readLock(i, NORM_PRIORITY);
+        }
+
+
+        /**
+         * 写锁在队头等待读锁释放之前调用
+         *
+         * @param headSince 写锁到达队头的时间
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        protected void beforeAwaitReaders(long headSince) throws KeeperException, InterruptedException {
+        }
+
+
+        /**
+         * 写锁在队头等待读锁释放的最长时间，到时后重新检查队列，使beforeAwaitReaders能在插队窗口结束时及时执行
+         *
+         * @param headSince 写锁到达队头的时间
+         * @return 小于0时不限制，一直等到read_count变化
+         */
+        protected long readerWaitBound(long headSince) {
+            return -1;
+        }
+
+
+        public abstract void readLock(int i, int priority) throws KeeperException, InterruptedException;
+
+
+        /**
+         * 本对象已经有节点在排队（例如未使用的预约）时再次加锁，新节点会排在自己的节点后面永远等待
+         */
+        void checkNotQueued() {
+            if (ownerLockName != null && !isOwnerLock()) {
+                throw new IllegalStateException("lock is already queued, use or cancel the reservation first");
+            }
+        }
+
+
+        /**
+         * 条件变量的操作要求持有写锁
+         */
+        void checkWriteLockHeld() {
+            if (!isOwnerLock() || isOwnerReadLock()) {
+                throw new IllegalMonitorStateException("write lock is not held");
+            }
+        }
+
+
+        /**
+         * 条件变量等待前完全释放写锁（包括重入的次数），保留会话以便之后重新加锁
+         *
+         * @return 释放前的重入次数
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        int releaseForAwait() throws KeeperException, InterruptedException {
+            checkWriteLockHeld();
+            int holds = getReenTranLockCount();
+            setOwnerLock(false);
+            releaseNode();
+            return holds;
+        }
+
+
+        /**
+         * 条件变量被唤醒或者超时后重新排队加写锁，并恢复重入次数
+         *
+         * @param holds
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void reacquireAfterAwait(int holds) throws KeeperException, InterruptedException {
+            acquire(1);
+            addReenTranLock(holds - 1);
+        }
 
 
         public abstract boolean tryReadLock(int i, long time, TimeUnit unit) throws KeeperException, InterruptedException;
@@ -423,13 +1130,17 @@ public class ZkReentrantReadWriteLock {
 
 
         public void release(int i) throws KeeperException, InterruptedException {
-            if (ownerLockName.contains(READ_LOCK_PREFIX)) {
+            boolean reader = LockNodeName.isReader(ownerLockName);
+            if (reader && !leaseEnabled()) {
                 minuReadLockCount();
             }
             if (getReenTranLockCount() > 1) {
                 minuReenTranLock(i);
             } else {
                 setOwnerLock(false);
+                if (reader && leaseEnabled()) {
+                    releaseLeasedReadLock();
+                }
                 close();
             }
         }
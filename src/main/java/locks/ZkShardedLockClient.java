@@ -0,0 +1,124 @@
+package locks;
+
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * 把锁资源分散到多个zookeeper集群上：资源名称通过带虚拟节点的一致性哈希映射到集群，
+ * 每个集群只维护一个会话，映射到该集群的锁共享这个会话。增加集群时只有落到新集群虚拟节点上的资源会迁移
+ * <p>
+ * 增加集群会改变部分资源的映射，应当在这些资源没有被持有时进行，否则新旧集群上可能同时有持有者
+ *
+ * @author mirror
+ */
+public class ZkShardedLockClient {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final int sessionTimeout;
+    private final int virtualNodes;
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    private final Map<String, ZooKeeper> sessions = new LinkedHashMap<String, ZooKeeper>();
+
+
+    /**
+     * @param sessionTimeout
+     * @param virtualNodes   每个集群在哈希环上的虚拟节点个数，越多分布越均匀
+     * @param connectStrings 每个集群的连接串
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ZkShardedLockClient(int sessionTimeout, int virtualNodes, String... connectStrings) throws IOException, InterruptedException {
+        if (connectStrings.length == 0) {
+            throw new IllegalArgumentException("at least one ensemble is required");
+        }
+        this.sessionTimeout = sessionTimeout;
+        this.virtualNodes = virtualNodes;
+        for (String connectString : connectStrings) {
+            addEnsemble(connectString);
+        }
+    }
+
+    public ZkShardedLockClient(String... connectStrings) throws IOException, InterruptedException {
+        this(60000, DEFAULT_VIRTUAL_NODES, connectStrings);
+    }
+
+
+    /**
+     * 增加一个集群
+     *
+     * @param connectString
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public synchronized void addEnsemble(String connectString) throws IOException, InterruptedException {
+        if (sessions.containsKey(connectString)) {
+            return;
+        }
+        sessions.put(connectString, AbstractZkSynchronizer.connect(connectString, sessionTimeout));
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(connectString + "#" + i), connectString);
+        }
+    }
+
+
+    /**
+     * 资源所在集群的连接串
+     *
+     * @param resourceName
+     * @return
+     */
+    public synchronized String shardOf(String resourceName) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(resourceName));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+
+    /**
+     * 在资源所在集群上创建读写锁，使用该集群的共享会话，释放后可以重复加锁
+     *
+     * @param resourceName
+     * @return
+     */
+    public ZkReentrantReadWriteLock newReadWriteLock(String resourceName) {
+        return newReadWriteLock(resourceName, ZkReentrantReadWriteLock.Policy.NONFAIR);
+    }
+
+    public synchronized ZkReentrantReadWriteLock newReadWriteLock(String resourceName, ZkReentrantReadWriteLock.Policy policy) {
+        return new ZkReentrantReadWriteLock(sessions.get(shardOf(resourceName)), resourceName, policy);
+    }
+
+
+    /**
+     * 关闭所有集群的会话，会话上的锁节点随之删除
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void close() throws InterruptedException {
+        for (ZooKeeper zk : sessions.values()) {
+            zk.close();
+        }
+        sessions.clear();
+        ring.clear();
+    }
+
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,8 +1,37 @@
+import locks.GuardedValue;
+import locks.GuardedValueCache;
+import locks.LockTicket;
+import locks.ZkCondition;
+import locks.ZkDeadlockException;
+import locks.ZkHierarchicalLock;
+import locks.ZkLock;
+import locks.ZkLockCombiner;
+import locks.ZkLockTable;
 import locks.ZkReentrantReadWriteLock;
+import locks.ZkShardedLockClient;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.Assert;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -13,6 +42,44 @@ public class Test {
 
     private static String LOCK_TEST = "lock_test";
 
+    private static ServerCnxnFactory startEmbeddedServer(int port) throws IOException, InterruptedException {
+        File dataDir = File.createTempFile("zklock-test", "");
+        dataDir.delete();
+        dataDir.mkdirs();
+        ServerCnxnFactory factory = ServerCnxnFactory.createFactory(port, 100);
+        factory.startup(new ZooKeeperServer(dataDir, dataDir, 2000));
+        return factory;
+    }
+
+    /**
+     * 直接读取锁资源节点用的会话
+     */
+    private static ZooKeeper connect(String zkHost) throws IOException, InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper zk = new ZooKeeper(zkHost, 60000, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getState() == Event.KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+            }
+        });
+        connected.await();
+        return zk;
+    }
+
+    private static void awaitQueueLength(ZooKeeper zk, String lockPath, int queueLength) throws KeeperException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            Stat stat = zk.exists(lockPath, false);
+            if (stat != null && stat.getNumChildren() >= queueLength) {
+                return;
+            }
+            Assert.assertTrue("queue length did not reach " + queueLength, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
     public static void main(String[] args) {
         ReentrantReadWriteLock.ReadLock readLock = new ReentrantReadWriteLock(true).readLock();
     }
@@ -77,6 +144,67 @@ public class Test {
     }
 
 
+    @org.junit.Test
+    public void testTryLockWithoutEnqueue() throws Exception {
+        ServerCnxnFactory factory = startEmbeddedServer(21817);
+        String zkHost = "localhost:21817";
+        String lockPath = "/lock_" + LOCK_TEST;
+        ZooKeeper zk = connect(zkHost);
+        try {
+            // 锁资源节点不存在或者空闲时照常加锁
+            ZkReentrantReadWriteLock.WriteLock freeWriter = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST).writeLock();
+            Assert.assertTrue(freeWriter.tryLock());
+            freeWriter.unlock();
+            ZkReentrantReadWriteLock.ReadLock freeReader = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST, true).readerLock();
+            Assert.assertTrue(freeReader.tryLock());
+            freeReader.unlock();
+
+            // 写锁被占用时一定失败的非阻塞加锁不创建节点，锁资源节点的子节点和内容都不变
+            ZkReentrantReadWriteLock.WriteLock holder = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST).writeLock();
+            holder.lock();
+            Stat before = zk.exists(lockPath, false);
+            Assert.assertFalse(new ZkReentrantReadWriteLock(zkHost, LOCK_TEST).writeLock().tryLock());
+            Assert.assertFalse(new ZkReentrantReadWriteLock(zkHost, LOCK_TEST).readerLock().tryLock());
+            Assert.assertFalse(new ZkReentrantReadWriteLock(zkHost, LOCK_TEST, true).readerLock().tryLock());
+            Stat after = zk.exists(lockPath, false);
+            Assert.assertEquals(before.getNumChildren(), after.getNumChildren());
+            Assert.assertEquals(before.getCversion(), after.getCversion());
+            Assert.assertEquals(before.getVersion(), after.getVersion());
+            holder.unlock();
+
+            // 读锁持有期间队头之后排着写节点：公平模式的读锁不能插队，非公平模式仍然可以
+            ZkReentrantReadWriteLock.ReadLock readHolder = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST, true).readerLock();
+            readHolder.lock();
+            final ZkReentrantReadWriteLock.WriteLock queuedWriter = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST, true).writeLock();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            Thread writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        queuedWriter.lock();
+                        queuedWriter.unlock();
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+            writerThread.start();
+            awaitQueueLength(zk, lockPath, 2);
+            Assert.assertFalse(new ZkReentrantReadWriteLock(zkHost, LOCK_TEST, true).readerLock().tryLock());
+            ZkReentrantReadWriteLock.ReadLock barger = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST).readerLock();
+            Assert.assertTrue(barger.tryLock());
+            barger.unlock();
+            readHolder.unlock();
+            writerThread.join(10000);
+            Assert.assertFalse(writerThread.isAlive());
+            Assert.assertNull(error.get());
+        } finally {
+            zk.close();
+            factory.shutdown();
+        }
+    }
+
+
     @org.junit.Test
     public void testReadReentranLock() throws KeeperException, InterruptedException, IOException {
         ZkReentrantReadWriteLock.ReadLock readLock = new ZkReentrantReadWriteLock("localhost", "mirror_try_timeout").readerLock();
@@ -93,4 +221,500 @@ public class Test {
         System.out.println("释放第一把锁");
     }
 
+
+    @org.junit.Test
+    public void testQueueStateAndAdmission() throws KeeperException, InterruptedException, IOException {
+        ZkReentrantReadWriteLock lock = new ZkReentrantReadWriteLock("localhost", LOCK_TEST);
+        System.out.println("队列长度：" + lock.getQueueLength());
+        System.out.println("队列状态：" + lock.getQueueState());
+        if (lock.writeLock().tryLock(10, 3, TimeUnit.SECONDS)) {
+            System.out.println("一段逻辑");
+            Thread.sleep(10000);
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    @org.junit.Test
+    public void testPriorityWriteLock() throws Exception {
+        ServerCnxnFactory factory = startEmbeddedServer(21818);
+        String zkHost = "localhost:21818";
+        String lockPath = "/lock_" + LOCK_TEST;
+        ZooKeeper zk = connect(zkHost);
+        try {
+            AtomicInteger inside = new AtomicInteger();
+            AtomicInteger maxInside = new AtomicInteger();
+            List<String> grants = Collections.synchronizedList(new ArrayList<String>());
+            AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            ZkReentrantReadWriteLock.WriteLock holder = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST).writeLock();
+            holder.lock();
+            enterExclusive(inside, maxInside);
+            Thread normal = priorityWriter(zkHost, "normal", ZkReentrantReadWriteLock.NORM_PRIORITY, inside, maxInside, grants, error);
+            normal.start();
+            awaitQueueLength(zk, lockPath, 2);
+            // 高优先级的写节点排到持有者前面，但持有者释放之前不能获得锁
+            Thread urgent = priorityWriter(zkHost, "urgent", ZkReentrantReadWriteLock.MAX_PRIORITY, inside, maxInside, grants, error);
+            urgent.start();
+            awaitQueueLength(zk, lockPath, 3);
+            Thread.sleep(500);
+            Assert.assertTrue(grants.isEmpty());
+            inside.decrementAndGet();
+            holder.unlock();
+            normal.join(10000);
+            urgent.join(10000);
+            Assert.assertFalse(normal.isAlive());
+            Assert.assertFalse(urgent.isAlive());
+            Assert.assertNull(error.get());
+            Assert.assertEquals(Arrays.asList("urgent", "normal"), grants);
+            Assert.assertEquals(1, maxInside.get());
+        } finally {
+            zk.close();
+            factory.shutdown();
+        }
+    }
+
+
+    private static Thread priorityWriter(final String zkHost, final String name, final int priority, final AtomicInteger inside,
+                                         final AtomicInteger maxInside, final List<String> grants, final AtomicReference<Throwable> error) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ZkReentrantReadWriteLock.WriteLock writeLock = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST).writeLock();
+                    writeLock.lock(priority);
+                    enterExclusive(inside, maxInside);
+                    grants.add(name);
+                    Thread.sleep(100);
+                    inside.decrementAndGet();
+                    writeLock.unlock();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * 记录同时持有写锁的客户端个数的最大值
+     */
+    private static void enterExclusive(AtomicInteger inside, AtomicInteger maxInside) {
+        int current = inside.incrementAndGet();
+        while (true) {
+            int max = maxInside.get();
+            if (current <= max || maxInside.compareAndSet(max, current)) {
+                return;
+            }
+        }
+    }
+
+
+    @org.junit.Test
+    public void testExecuteUnderLock() throws InterruptedException, IOException {
+        final ZkLockCombiner combiner = new ZkLockCombiner("localhost", 100, 50, TimeUnit.MILLISECONDS);
+        final AtomicInteger counter = new AtomicInteger();
+        Thread[] threads = new Thread[20];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        combiner.executeUnderLock(LOCK_TEST, new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return counter.incrementAndGet();
+                            }
+                        });
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.println("执行次数：" + counter.get());
+        combiner.close();
+    }
+
+
+    @org.junit.Test
+    public void testHierarchicalLock() throws KeeperException, InterruptedException, IOException {
+        ZkHierarchicalLock rowLock = new ZkHierarchicalLock("localhost", "tenant/table/row");
+        rowLock.lock(ZkHierarchicalLock.Mode.X);
+        System.out.println("一段逻辑");
+        ZkHierarchicalLock tenantLock = new ZkHierarchicalLock("localhost", "tenant");
+        System.out.println("租户锁：" + tenantLock.tryLock(ZkHierarchicalLock.Mode.S, 3, TimeUnit.SECONDS));
+        rowLock.unlock();
+        rowLock.close();
+        tenantLock.close();
+    }
+
+
+    @org.junit.Test
+    public void testLeaseWriteLock() throws KeeperException, InterruptedException, IOException {
+        ZkReentrantReadWriteLock lock = new ZkReentrantReadWriteLock("localhost", LOCK_TEST);
+        lock.setLeaseTime(5, TimeUnit.SECONDS);
+        lock.writeLock().lock();
+        System.out.println("fencing token：" + lock.getFencingToken());
+        for (int i = 0; i < 5; i++) {
+            System.out.println("一段逻辑");
+            Thread.sleep(2000);
+            if (!lock.renewLease()) {
+                System.out.println("锁已被收回");
+                break;
+            }
+        }
+        lock.writeLock().unlock();
+    }
+
+
+    @org.junit.Test
+    public void testWriterPreferenceLock() throws Exception {
+        ServerCnxnFactory factory = startEmbeddedServer(21819);
+        final String zkHost = "localhost:21819";
+        String lockPath = "/lock_" + LOCK_TEST;
+        long bargingWindowMillis = 300;
+        long readerHoldMillis = 100;
+        ZooKeeper zk = connect(zkHost);
+        try {
+            // 读锁交替持有，read_count一直不归零；写锁最多等待插队窗口加上一次读锁的持有时间
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            Thread[] readers = new Thread[3];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = cyclingReader(zkHost, readerHoldMillis, stop, error);
+                readers[i].start();
+                Thread.sleep(readerHoldMillis / readers.length);
+            }
+            Thread.sleep(bargingWindowMillis);
+            ZkReentrantReadWriteLock.WriteLock writeLock =
+                    new ZkReentrantReadWriteLock(zkHost, 60000, LOCK_TEST, bargingWindowMillis, TimeUnit.MILLISECONDS).writeLock();
+            long start = System.nanoTime();
+            writeLock.lock();
+            long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            writeLock.unlock();
+            stop.set(true);
+            for (Thread reader : readers) {
+                reader.join(10000);
+                Assert.assertFalse(reader.isAlive());
+            }
+            Assert.assertNull(error.get());
+            // 留出zookeeper往返的余量
+            Assert.assertTrue("writer waited " + waitedMillis + "ms", waitedMillis < bargingWindowMillis + readerHoldMillis + 1000);
+
+            // 屏障竖起后新的读锁不能再插队
+            ZkReentrantReadWriteLock.ReadLock longReader = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST, ZkReentrantReadWriteLock.Policy.WRITER_PREFERENCE).readerLock();
+            longReader.lock();
+            final ZkReentrantReadWriteLock.WriteLock queuedWriter =
+                    new ZkReentrantReadWriteLock(zkHost, 60000, LOCK_TEST, bargingWindowMillis, TimeUnit.MILLISECONDS).writeLock();
+            final AtomicReference<Throwable> writerError = new AtomicReference<Throwable>();
+            Thread writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        queuedWriter.lock();
+                        queuedWriter.unlock();
+                    } catch (Throwable e) {
+                        writerError.set(e);
+                    }
+                }
+            });
+            writerThread.start();
+            awaitWriterBarrier(zk, lockPath);
+            Assert.assertFalse(new ZkReentrantReadWriteLock(zkHost, LOCK_TEST, ZkReentrantReadWriteLock.Policy.WRITER_PREFERENCE).readerLock().tryLock());
+            longReader.unlock();
+            writerThread.join(10000);
+            Assert.assertFalse(writerThread.isAlive());
+            Assert.assertNull(writerError.get());
+        } finally {
+            zk.close();
+            factory.shutdown();
+        }
+    }
+
+
+    private static Thread cyclingReader(final String zkHost, final long holdMillis, final AtomicBoolean stop, final AtomicReference<Throwable> error) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ZooKeeper session = connect(zkHost);
+                    try {
+                        // 共享会话的锁对象释放后可以重复加锁
+                        ZkReentrantReadWriteLock.ReadLock readLock =
+                                new ZkReentrantReadWriteLock(session, LOCK_TEST, ZkReentrantReadWriteLock.Policy.WRITER_PREFERENCE).readerLock();
+                        while (!stop.get()) {
+                            readLock.lock();
+                            Thread.sleep(holdMillis);
+                            readLock.unlock();
+                        }
+                    } finally {
+                        session.close();
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+    }
+
+
+    private static void awaitWriterBarrier(ZooKeeper zk, String lockPath) throws KeeperException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            for (String node : zk.getChildren(lockPath, false)) {
+                if (node.startsWith("w_") && new String(zk.getData(lockPath + "/" + node, false, null)).startsWith("barrier")) {
+                    return;
+                }
+            }
+            Assert.assertTrue("writer barrier was not raised", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+
+    @org.junit.Test
+    public void testShardedLock() throws Exception {
+        int[] ports = {21811, 21812, 21813};
+        ServerCnxnFactory[] factories = new ServerCnxnFactory[ports.length];
+        String[] connectStrings = new String[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            factories[i] = startEmbeddedServer(ports[i]);
+            connectStrings[i] = "localhost:" + ports[i];
+        }
+        ZkShardedLockClient client = new ZkShardedLockClient(connectStrings[0], connectStrings[1]);
+        try {
+            Map<String, String> before = new HashMap<String, String>();
+            for (int i = 0; i < 1000; i++) {
+                before.put("resource_" + i, client.shardOf("resource_" + i));
+            }
+            client.addEnsemble(connectStrings[2]);
+            int moved = 0;
+            for (Map.Entry<String, String> entry : before.entrySet()) {
+                String shard = client.shardOf(entry.getKey());
+                if (!shard.equals(entry.getValue())) {
+                    Assert.assertEquals(connectStrings[2], shard);
+                    moved++;
+                }
+            }
+            System.out.println("迁移的资源个数：" + moved);
+            Assert.assertTrue(moved > 0 && moved < 600);
+
+            ZkReentrantReadWriteLock.WriteLock writeLock = client.newReadWriteLock(LOCK_TEST).writeLock();
+            for (int i = 0; i < 3; i++) {
+                writeLock.lock();
+                System.out.println("一段逻辑");
+                writeLock.unlock();
+            }
+        } finally {
+            client.close();
+            for (ServerCnxnFactory factory : factories) {
+                factory.shutdown();
+            }
+        }
+    }
+
+
+    @org.junit.Test
+    public void testGuardedValue() throws Exception {
+        final AtomicInteger loadCount = new AtomicInteger();
+        GuardedValue<String> guardedValue = new GuardedValue<String>(new GuardedValueCache(100), new Callable<String>() {
+            @Override
+            public String call() {
+                loadCount.incrementAndGet();
+                return "从数据库读取的数据";
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            ZkReentrantReadWriteLock lock = new ZkReentrantReadWriteLock("localhost", LOCK_TEST);
+            lock.setWriteEpochTracking(true);
+            lock.readerLock().lock();
+            System.out.println(guardedValue.get(lock));
+            lock.readerLock().unlock();
+        }
+        System.out.println("加载次数：" + loadCount.get());
+    }
+
+
+    @org.junit.Test
+    public void testCondition() throws Exception {
+        ServerCnxnFactory factory = startEmbeddedServer(21814);
+        final String zkHost = "localhost:21814";
+        try {
+            ZkReentrantReadWriteLock lock = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST);
+            ZkReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
+            ZkCondition notEmpty = writeLock.newCondition("not_empty");
+            writeLock.lock();
+            final AtomicReference<Throwable> signallerError = new AtomicReference<Throwable>();
+            // 另一个客户端只有在await释放写锁之后才能加锁并signal
+            Thread signaller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ZkReentrantReadWriteLock.WriteLock otherLock = new ZkReentrantReadWriteLock(zkHost, LOCK_TEST).writeLock();
+                        otherLock.lock();
+                        otherLock.newCondition("not_empty").signal();
+                        otherLock.unlock();
+                    } catch (Throwable e) {
+                        signallerError.set(e);
+                    }
+                }
+            });
+            signaller.start();
+            Assert.assertTrue(notEmpty.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue(lock.isWriteLockHeld());
+            writeLock.unlock();
+            signaller.join();
+            Assert.assertNull(signallerError.get());
+        } finally {
+            factory.shutdown();
+        }
+    }
+
+
+    @org.junit.Test
+    public void testCompactNodeNames() throws KeeperException, InterruptedException, IOException {
+        ZkReentrantReadWriteLock lock = new ZkReentrantReadWriteLock("localhost", LOCK_TEST);
+        lock.setCompactNodeNames(true);
+        lock.writeLock().lock();
+        System.out.println("一段逻辑");
+        Thread.sleep(10000);
+        lock.writeLock().unlock();
+    }
+
+
+    @org.junit.Test
+    public void testLockTable() throws KeeperException, InterruptedException, IOException {
+        ZkLockTable table = new ZkLockTable("localhost");
+        for (int userId = 0; userId < 100; userId++) {
+            ZkLock lock = table.lock("user_" + userId, ZkLockTable.Mode.WRITE);
+            System.out.println("一段逻辑");
+            lock.unlock();
+        }
+        table.close();
+    }
+
+
+    @org.junit.Test
+    public void testDeadlockDetection() throws Exception {
+        ServerCnxnFactory factory = startEmbeddedServer(21815);
+        String zkHost = "localhost:21815";
+        try {
+            final CountDownLatch bothHeld = new CountDownLatch(2);
+            final AtomicInteger deadlocks = new AtomicInteger();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            // 两个线程以相反的顺序加两把锁，形成跨客户端的循环等待
+            Thread[] threads = {
+                    deadlockThread(zkHost, "lock_test_a", true, "lock_test_b", true, ZkReentrantReadWriteLock.NORM_PRIORITY, bothHeld, deadlocks, error),
+                    deadlockThread(zkHost, "lock_test_b", true, "lock_test_a", true, ZkReentrantReadWriteLock.NORM_PRIORITY, bothHeld, deadlocks, error)
+            };
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join(30000);
+                Assert.assertFalse(thread.isAlive());
+            }
+            Assert.assertNull(error.get());
+            Assert.assertEquals(1, deadlocks.get());
+        } finally {
+            factory.shutdown();
+        }
+    }
+
+
+    @org.junit.Test
+    public void testDeadlockDetectionThroughReaders() throws Exception {
+        ServerCnxnFactory factory = startEmbeddedServer(21816);
+        String zkHost = "localhost:21816";
+        try {
+            final CountDownLatch bothHeld = new CountDownLatch(2);
+            final AtomicInteger deadlocks = new AtomicInteger();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            // 读线程持有a的读锁后等待b的读锁；写线程持有b的写锁后以最高优先级等待a的写锁，
+            // 写节点排到读节点前面成为队头，等待的是排在它后面的读节点占用的read_count
+            Thread[] threads = {
+                    deadlockThread(zkHost, "lock_test_a", false, "lock_test_b", false, ZkReentrantReadWriteLock.NORM_PRIORITY, bothHeld, deadlocks, error),
+                    deadlockThread(zkHost, "lock_test_b", true, "lock_test_a", true, ZkReentrantReadWriteLock.MAX_PRIORITY, bothHeld, deadlocks, error)
+            };
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join(30000);
+                Assert.assertFalse(thread.isAlive());
+            }
+            Assert.assertNull(error.get());
+            Assert.assertEquals(1, deadlocks.get());
+        } finally {
+            factory.shutdown();
+        }
+    }
+
+
+    private static Thread deadlockThread(final String zkHost, final String firstResource, final boolean firstWrite,
+                                         final String secondResource, final boolean secondWrite, final int secondPriority,
+                                         final CountDownLatch bothHeld, final AtomicInteger deadlocks, final AtomicReference<Throwable> error) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ZkReentrantReadWriteLock first = new ZkReentrantReadWriteLock(zkHost, firstResource);
+                    ZkReentrantReadWriteLock second = new ZkReentrantReadWriteLock(zkHost, secondResource);
+                    first.setDeadlockDetection(200, TimeUnit.MILLISECONDS);
+                    second.setDeadlockDetection(200, TimeUnit.MILLISECONDS);
+                    lockOf(first, firstWrite).lock();
+                    bothHeld.countDown();
+                    bothHeld.await();
+                    try {
+                        lockAs(second, secondWrite, secondPriority);
+                    } catch (ZkDeadlockException e) {
+                        deadlocks.incrementAndGet();
+                        // 被选中放弃的一方释放已经持有的锁后重试，抛出异常的锁对象可以继续使用；
+                        // first释放时关闭了自己创建的会话，需要重新创建
+                        lockOf(first, firstWrite).unlock();
+                        first = new ZkReentrantReadWriteLock(zkHost, firstResource);
+                        first.setDeadlockDetection(200, TimeUnit.MILLISECONDS);
+                        lockOf(first, firstWrite).lock();
+                        lockAs(second, secondWrite, secondPriority);
+                    }
+                    lockOf(second, secondWrite).unlock();
+                    lockOf(first, firstWrite).unlock();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+    }
+
+
+    private static ZkLock lockOf(ZkReentrantReadWriteLock lock, boolean write) {
+        return write ? lock.writeLock() : lock.readerLock();
+    }
+
+
+    private static void lockAs(ZkReentrantReadWriteLock lock, boolean write, int priority) throws KeeperException, InterruptedException {
+        if (write) {
+            lock.writeLock().lock(priority);
+        } else {
+            lock.readerLock().lock(priority);
+        }
+    }
+
+
+    @org.junit.Test
+    public void testReserveWriteLock() throws KeeperException, InterruptedException, IOException {
+        ZkReentrantReadWriteLock.WriteLock writeLock = new ZkReentrantReadWriteLock("localhost", LOCK_TEST).writeLock();
+        LockTicket ticket = writeLock.reserve();
+        // 准备工作期间在后台排队
+        Thread.sleep(50);
+        if (ticket.acquire(10, TimeUnit.SECONDS)) {
+            System.out.println("一段逻辑");
+            writeLock.unlock();
+        }
+    }
+
 }